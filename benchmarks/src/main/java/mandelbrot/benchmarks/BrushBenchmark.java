@@ -0,0 +1,85 @@
+package mandelbrot.benchmarks;
+
+import mandelbrot.brushes.*;
+import mandelbrot.core.Brush;
+import mandelbrot.core.Frame;
+import mandelbrot.core.Renderer;
+import mandelbrot.core.View;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Brush.getColor over the iteration data of a real 320x200 frame of seahorse valley, so every brush sees the same
+ * mix of interior, fast and slow pixels.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BrushBenchmark {
+
+    @Param({"Smooth", "Elegant", "Banded", "Binary", "Histogram", "Boundary"})
+    String brushName;
+
+    Brush brush;
+    int[] iterations;
+    double[] escapeMagnitudes;
+    double[] distances;
+
+    @Setup
+    public void setup() throws Exception {
+        View view = CanonicalViews.get("seahorse", 320, 200);
+        int maxIterations = view.getMaxIterations();
+
+        switch (brushName) {
+            case "Smooth":
+                brush = new SmoothBrush(maxIterations);
+                break;
+            case "Elegant":
+                brush = new ElegantBrush(maxIterations);
+                break;
+            case "Banded":
+                brush = new BandedBrush(maxIterations);
+                break;
+            case "Binary":
+                brush = new BinaryBrush(maxIterations);
+                break;
+            case "Histogram":
+                brush = new HistogramBrush(maxIterations);
+                break;
+            case "Boundary":
+                brush = new BoundaryBrush(maxIterations);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown brush " + brushName);
+        }
+
+        Renderer renderer = new Renderer(1);
+        Frame frame = renderer.render(view.setDistanceEstimated(brush.isDistanceDependent()), brush, 0);
+        renderer.shutdown();
+
+        // Brushes that depend on the frame color with the copy prepared from it, as the renderer does
+        brush = frame.getBrush();
+        iterations = frame.getIterations();
+        escapeMagnitudes = frame.getEscapeMagnitudes();
+        distances = frame.getDistances();
+    }
+
+    @Benchmark
+    public void colorFrame(Blackhole blackhole) {
+        if (distances != null) {
+            for (int i = 0; i < iterations.length; i++) {
+                blackhole.consume(brush.getColor(iterations[i], escapeMagnitudes[i], distances[i], 0.25f));
+            }
+            return;
+        }
+
+        for (int i = 0; i < iterations.length; i++) {
+            blackhole.consume(brush.getColor(iterations[i], escapeMagnitudes[i], 0.25f));
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package mandelbrot.benchmarks;
+
+import mandelbrot.core.View;
+
+/**
+ * The fixed views every benchmark renders, so numbers stay comparable between runs.
+ * Imaginary centers are passed negated, as View expects.
+ */
+final class CanonicalViews {
+
+    private CanonicalViews() {
+    }
+
+    /**
+     * @param name      one of full, seahorse, spiral, interior, julia
+     * @param width     width in pixels
+     * @param height    height in pixels
+     * @return the view, scaled so the same region fills any size
+     */
+    static View get(String name, int width, int height) {
+        switch (name) {
+            case "full":
+                // The whole set, as on startup
+                return new View(width, height, -0.75, 0, width / 3.5, 1000);
+            case "seahorse":
+                // Seahorse valley, between the cardioid and the period two bulb
+                return new View(width, height, -0.7453, -0.1127, width / 0.01, 1000);
+            case "spiral":
+                // A deep spiral, close to the limit of double precision
+                return new View(width, height, -0.743643887037151, -0.131825904205330, width / 2e-9, 2000);
+            case "interior":
+                // Mostly inside the main cardioid, where every pixel runs to maxIterations
+                return new View(width, height, -0.1, 0, width / 0.4, 1000);
+            case "julia":
+                // A connected Julia set with a lot of slow boundary
+                return new View(width, height, 0, 0, width / 3.5, 1000, -0.8, 0.156);
+            default:
+                throw new IllegalArgumentException("Unknown view " + name);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package mandelbrot.benchmarks;
+
+import mandelbrot.core.EscapeTime;
+import mandelbrot.core.View;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The escape loop on its own, one thread, no brush: a 128x96 grid of points from each canonical view under each
+ * formula, with and without distance estimation. Divide the score by the grid size for time per point.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EscapeTimeBenchmark {
+
+    static final int WIDTH = 128;
+    static final int HEIGHT = 96;
+
+    @Param({"full", "seahorse", "spiral", "interior", "julia"})
+    String view;
+
+    @Param({"Mandelbrot", "BurningShip", "Tricorn", "Multibrot3"})
+    String formula;
+
+    @Param({"false", "true"})
+    boolean distance;
+
+    View grid;
+    EscapeTime escapeTime;
+    double[] re;
+    double[] im;
+
+    @Setup
+    public void setup() {
+        grid = CanonicalViews.get(view, WIDTH, HEIGHT).setFormula(Formulas.get(formula)).setDistanceEstimated(distance);
+        escapeTime = new EscapeTime(grid.getFormula());
+
+        re = new double[WIDTH];
+        im = new double[HEIGHT];
+        for (int x = 0; x < WIDTH; x++) re[x] = grid.getRealComponent(x);
+        for (int y = 0; y < HEIGHT; y++) im[y] = grid.getImaginaryComponent(y);
+    }
+
+    @Benchmark
+    public void iterateGrid(Blackhole blackhole) {
+        long iterations = 0;
+
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                iterations += escapeTime.iterate(grid, re[x], im[y]);
+            }
+        }
+
+        blackhole.consume(iterations);
+    }
+}
@@ -0,0 +1,30 @@
+package mandelbrot.benchmarks;
+
+import mandelbrot.core.Formula;
+import mandelbrot.formulas.*;
+
+/**
+ * Looks formulas up by the names used in benchmark parameters.
+ */
+final class Formulas {
+
+    private Formulas() {
+    }
+
+    static Formula get(String name) {
+        switch (name) {
+            case "Mandelbrot":
+                return new MandelbrotFormula();
+            case "BurningShip":
+                return new BurningShipFormula();
+            case "Tricorn":
+                return new TricornFormula();
+            case "Multibrot3":
+                return new MultibrotFormula(3);
+            case "Multibrot4":
+                return new MultibrotFormula(4);
+            default:
+                throw new IllegalArgumentException("Unknown formula " + name);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package mandelbrot.benchmarks;
+
+import mandelbrot.brushes.SmoothBrush;
+import mandelbrot.core.Frame;
+import mandelbrot.core.Renderer;
+import mandelbrot.core.View;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end frame generation through the Renderer, iteration and coloring together, at several resolutions and
+ * thread counts. Thread counts above the machine's core count are still run, they just stop scaling.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FrameBenchmark {
+
+    @Param({"full", "seahorse", "interior"})
+    String view;
+
+    @Param({"640x400", "1280x720", "1920x1080"})
+    String resolution;
+
+    @Param({"1", "2", "4", "8"})
+    int threads;
+
+    View frameView;
+    Renderer renderer;
+    SmoothBrush brush;
+
+    @Setup
+    public void setup() {
+        String[] size = resolution.split("x");
+        frameView = CanonicalViews.get(view, Integer.parseInt(size[0]), Integer.parseInt(size[1]));
+        renderer = new Renderer(threads);
+        brush = new SmoothBrush(frameView.getMaxIterations());
+    }
+
+    @TearDown
+    public void tearDown() {
+        renderer.shutdown();
+    }
+
+    @Benchmark
+    public Frame renderFrame() throws Exception {
+        return renderer.render(frameView, brush, 0);
+    }
+}
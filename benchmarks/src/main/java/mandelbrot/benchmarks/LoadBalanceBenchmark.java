@@ -0,0 +1,66 @@
+package mandelbrot.benchmarks;
+
+import mandelbrot.brushes.SmoothBrush;
+import mandelbrot.core.Frame;
+import mandelbrot.core.Renderer;
+import mandelbrot.core.View;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frame time with renders balanced by the cost map of the previous frame, against one vertical slice per thread.
+ * Every invocation pans a fifth of the width back and forth, like the WASD keys, so the map has to be carried over
+ * to a moved view. The tail ratio (busiest thread over mean thread) is averaged over the trial and printed at the end.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoadBalanceBenchmark {
+
+    @Param({"full", "seahorse", "interior"})
+    String view;
+
+    @Param({"guided", "slices"})
+    String scheduling;
+
+    @Param({"4", "8"})
+    int threads;
+
+    View[] views;
+    Renderer renderer;
+    SmoothBrush brush;
+    int next;
+
+    double tailRatios;
+    long frames;
+
+    @Setup
+    public void setup() {
+        View start = CanonicalViews.get(view, 1280, 720);
+        views = new View[]{start, start.moved(1280 / 5.0, 0)};
+
+        renderer = new Renderer(threads);
+        renderer.setCostGuided(scheduling.equals("guided"));
+        brush = new SmoothBrush(start.getMaxIterations());
+    }
+
+    @TearDown
+    public void tearDown() {
+        renderer.shutdown();
+        System.out.printf("%nTail ratio (%s, %s, %d threads): %.2f%n", view, scheduling, threads, tailRatios / frames);
+    }
+
+    @Benchmark
+    public Frame renderFrame() throws Exception {
+        Frame frame = renderer.render(views[next], brush, 0);
+        next = 1 - next;
+
+        tailRatios += renderer.getMetrics().getTailRatio();
+        frames++;
+        return frame;
+    }
+}
@@ -10,15 +10,18 @@ import java.util.Random;
  */
 public class BandedBrush extends Brush {
 
+    // The bands repeat after this many iterations, so the palette stays the same whatever the budget
+    static final int PALETTE_SIZE = 1024;
+
     int[] randomColors;
 
     public BandedBrush(int maxIterations) {
         super(maxIterations);
 
         Random random = new Random();
-        randomColors = new int[maxIterations];
+        randomColors = new int[PALETTE_SIZE];
 
-        for (int i = 0; i < maxIterations; i++) {
+        for (int i = 0; i < PALETTE_SIZE; i++) {
             randomColors[i] = new Color(random.nextInt(255), random.nextInt(255), random.nextInt(255)).getRGB();
         }
     }
@@ -29,6 +32,6 @@ public class BandedBrush extends Brush {
             return 0;
         }
 
-        return randomColors[(iteration + (int)(maxIterations * offset)) % maxIterations];
+        return randomColors[(iteration + (int)(PALETTE_SIZE * offset)) % PALETTE_SIZE];
     }
 }
@@ -0,0 +1,72 @@
+package mandelbrot.brushes;
+
+import mandelbrot.core.Brush;
+import mandelbrot.core.Frame;
+import mandelbrot.core.Renderer;
+
+import java.awt.*;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Colors by where a pixel's iteration count falls among the rest of the frame, rather than by the count itself.
+ * Every hue gets an equal share of the escaping pixels, so views whose iterations only cover a narrow range
+ * still use the full palette, whatever the max iterations are set to.
+ */
+public class HistogramBrush extends Brush {
+
+    double[] cdf;
+
+    public HistogramBrush(int maxIterations) {
+        super(maxIterations);
+
+        // Until it is prepared from a frame, the brush spreads the palette evenly over the counts
+        cdf = new double[maxIterations + 2];
+        for (int i = 0; i < cdf.length; i++) {
+            cdf[i] = i / (double) (maxIterations + 1);
+        }
+    }
+
+    @Override
+    public boolean isFrameDependent() {
+        return true;
+    }
+
+    @Override
+    public Brush prepare(Frame frame, Renderer renderer) throws InterruptedException, ExecutionException {
+        long[] histogram = renderer.histogram(frame);
+
+        // Pixels that never escape are painted black, so they take no share of the palette
+        long escaped = 0;
+        for (int i = 0; i < maxIterations && i < histogram.length; i++) {
+            escaped += histogram[i];
+        }
+
+        double[] cdf = new double[maxIterations + 2];
+        long below = 0;
+        for (int i = 0; i <= maxIterations; i++) {
+            cdf[i] = escaped == 0 ? 0 : below / (double) escaped;
+            if (i < histogram.length) below += histogram[i];
+        }
+        cdf[maxIterations + 1] = 1;
+
+        HistogramBrush prepared = new HistogramBrush(maxIterations);
+        prepared.cdf = cdf;
+        return prepared;
+    }
+
+    @Override
+    public int getColor(int iteration, double escapeMagnitude, float offset) {
+
+        if (iteration >= maxIterations) {
+            return 0;
+        }
+
+        // Blend towards the next count by the fractional part of the smooth iteration count. The max iterations can
+        // be raised after the brush was prepared, so counts past the end of its table share the last bin.
+        double fraction = Math.max(0, Math.min(1, 1 - Math.log(Math.log(escapeMagnitude)) / Math.log(2.0)));
+        int bin = Math.min(iteration, cdf.length - 2);
+        double position = cdf[bin] + fraction * (cdf[bin + 1] - cdf[bin]);
+
+        return Color.getHSBColor(offset + (float) position, 0.6f, 1.0f).getRGB();
+    }
+}
@@ -0,0 +1,172 @@
+package mandelbrot.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Adaptive anti-aliasing for rendered frames.
+ *
+ * Most of a frame is smooth, and supersampling all of it wastes nearly every sample. Instead, only pixels whose
+ * smooth iteration value jumps past a threshold relative to one of their neighbors are refined, with jittered
+ * samples spread over the pixel. The samples are colored with the frame's brush and averaged in linear light,
+ * so thin filaments keep their brightness instead of going muddy.
+ */
+public class Antialiaser {
+
+    // sRGB to linear light, one entry per channel value
+    private static final float[] LINEAR = new float[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            double c = i / 255.0;
+            LINEAR[i] = (float) (c <= 0.04045 ? c / 12.92 : Math.pow((c + 0.055) / 1.055, 2.4));
+        }
+    }
+
+    Renderer renderer;
+    int samples;
+    double threshold;
+
+    long refinedPixels;
+    long totalPixels;
+
+
+    /**
+     * Constructor
+     *
+     * @param renderer  the renderer whose threads do the work
+     * @param samples   extra samples taken in each refined pixel
+     * @param threshold how far apart, in smooth iterations, neighboring pixels must be to refine them
+     */
+    public Antialiaser(Renderer renderer, int samples, double threshold) {
+        if (samples < 1) throw new IllegalArgumentException("Need at least one sample per refined pixel");
+
+        this.renderer = renderer;
+        this.samples = samples;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Refine the pixels of a frame that sit on an edge. Iteration data is left as it was.
+     *
+     * @param frame the frame to refine
+     * @return the fraction of pixels that were refined
+     */
+    public double refine(Frame frame) throws InterruptedException, ExecutionException {
+        int[] refined = new int[frame.pixels.length];
+        Collection<Callable<Long>> tasks = new ArrayList<>();
+
+        // Decide which pixels to refine before touching any, so the detection only ever sees the original frame
+        int bandHeight = Math.max(1, frame.height / renderer.threads);
+        for (int yStart = 0; yStart < frame.height; yStart += bandHeight) {
+            int yEnd = Math.min(frame.height, yStart + bandHeight);
+            int start = yStart;
+            tasks.add(() -> refineBand(frame, refined, start, yEnd));
+        }
+
+        refinedPixels = 0;
+        for (Future<Long> future : renderer.executor.invokeAll(tasks)) {
+            refinedPixels += future.get();
+        }
+        totalPixels = frame.pixels.length;
+
+        System.arraycopy(refined, 0, frame.pixels, 0, refined.length);
+
+        return getRefinedFraction();
+    }
+
+    public double getRefinedFraction() {
+        return totalPixels == 0 ? 0 : refinedPixels / (double) totalPixels;
+    }
+
+    /**
+     * @return a summary of the last refinement
+     */
+    public String getReport() {
+        return String.format("Anti-aliased %.1f%% of pixels with %d samples each, edge threshold %.2f",
+                100 * getRefinedFraction(), samples, threshold);
+    }
+
+    private long refineBand(Frame frame, int[] refined, int yStart, int yEnd) {
+        View view = frame.view;
+        EscapeTime escapeTime = new EscapeTime(view.formula);
+        long count = 0;
+
+        // Stratify the samples over a grid inside the pixel and jitter each within its cell
+        int columns = (int) Math.ceil(Math.sqrt(samples));
+        int rows = (samples + columns - 1) / columns;
+
+        for (int yPixel = yStart; yPixel < yEnd; yPixel++) {
+            for (int xPixel = 0; xPixel < frame.width; xPixel++) {
+                int index = yPixel * frame.width + xPixel;
+
+                if (!isEdge(frame, xPixel, yPixel)) {
+                    refined[index] = frame.pixels[index];
+                    continue;
+                }
+
+                SplittableRandom random = new SplittableRandom(index);
+                int color = frame.pixels[index];
+                double red = LINEAR[(color >> 16) & 0xFF];
+                double green = LINEAR[(color >> 8) & 0xFF];
+                double blue = LINEAR[color & 0xFF];
+
+                for (int sample = 0; sample < samples; sample++) {
+                    double x = xPixel - 0.5 + (sample % columns + random.nextDouble()) / columns;
+                    double y = yPixel - 0.5 + (sample / columns + random.nextDouble()) / rows;
+
+                    int iteration = escapeTime.iterate(view, view.getRealComponent(x), view.getImaginaryComponent(y));
+                    color = frame.distances != null
+                            ? frame.brush.getColor(iteration, escapeTime.escapeMagnitude, escapeTime.distance * view.zoom, frame.colorOffset)
+                            : frame.brush.getColor(iteration, escapeTime.escapeMagnitude, frame.colorOffset);
+
+                    red += LINEAR[(color >> 16) & 0xFF];
+                    green += LINEAR[(color >> 8) & 0xFF];
+                    blue += LINEAR[color & 0xFF];
+                }
+
+                // The original sample at the pixel center counts as one of the samples
+                refined[index] = (toSRGB(red / (samples + 1)) << 16) | (toSRGB(green / (samples + 1)) << 8) | toSRGB(blue / (samples + 1));
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Check whether a pixel differs from any of its four neighbors by more than the threshold
+     */
+    private boolean isEdge(Frame frame, int xPixel, int yPixel) {
+        double smooth = smoothValue(frame, yPixel * frame.width + xPixel);
+
+        return (xPixel > 0 && differs(smooth, smoothValue(frame, yPixel * frame.width + xPixel - 1)))
+                || (xPixel < frame.width - 1 && differs(smooth, smoothValue(frame, yPixel * frame.width + xPixel + 1)))
+                || (yPixel > 0 && differs(smooth, smoothValue(frame, (yPixel - 1) * frame.width + xPixel)))
+                || (yPixel < frame.height - 1 && differs(smooth, smoothValue(frame, (yPixel + 1) * frame.width + xPixel)));
+    }
+
+    private boolean differs(double a, double b) {
+        // Interior pixels are infinitely far from escaping ones
+        return a != b && (Double.isInfinite(a) || Double.isInfinite(b) || Math.abs(a - b) > threshold);
+    }
+
+    /**
+     * @return the continuous iteration count of a pixel, or infinity if it never escaped
+     */
+    private static double smoothValue(Frame frame, int index) {
+        int iteration = frame.iterations[index];
+        if (iteration == frame.view.maxIterations) return Double.POSITIVE_INFINITY;
+
+        return iteration + 1 - Math.log(Math.log(frame.escapeMagnitudes[index])) / Math.log(2.0);
+    }
+
+    private static int toSRGB(double linear) {
+        double c = linear <= 0.0031308 ? linear * 12.92 : 1.055 * Math.pow(linear, 1 / 2.4) - 0.055;
+        return (int) Math.round(Math.max(0, Math.min(1, c)) * 255);
+    }
+}
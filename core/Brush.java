@@ -1,5 +1,7 @@
 package mandelbrot.core;
 
+import java.util.concurrent.ExecutionException;
+
 /**
  * Created by Kiran Tomlinson on 8/25/16.
  *
@@ -15,4 +17,60 @@ public abstract class Brush {
     }
 
     public abstract int getColor(int iteration, double escapeMagnitude, float offset);
+
+    /**
+     * Color a point of a view that estimates distances. Brushes that draw with the distance override this,
+     * the others color exactly as without it.
+     *
+     * @param iteration         the number of iterations taken
+     * @param escapeMagnitude   the magnitude of z when the loop stopped
+     * @param distance          the estimated distance to the set in pixels, 0 inside it or NaN if the formula has no
+     *                          estimate
+     * @param offset            the color offset
+     * @return the color
+     */
+    public int getColor(int iteration, double escapeMagnitude, double distance, float offset) {
+        return getColor(iteration, escapeMagnitude, offset);
+    }
+
+    /**
+     * Change the iteration budget the brush colors for. Brushes that size anything by the budget adjust it here.
+     *
+     * @param maxIterations
+     */
+    public void setMaxIterations(int maxIterations) {
+        this.maxIterations = maxIterations;
+    }
+
+    /**
+     * Brushes that color each pixel relative to the rest of the frame return true. The renderer then finishes
+     * iterating the whole frame and calls prepare before it colors any pixel.
+     *
+     * @return true if this brush needs prepare
+     */
+    public boolean isFrameDependent() {
+        return false;
+    }
+
+    /**
+     * Brushes that draw with the distance to the set return true. Frames they paint are rendered with distances
+     * estimated, which the plain escape loop skips.
+     *
+     * @return true if this brush needs distance estimates
+     */
+    public boolean isDistanceDependent() {
+        return false;
+    }
+
+    /**
+     * Look at a frame's iteration data before it is colored. Brushes that keep anything from the frame keep it in a
+     * copy of themselves, so frames prepared at the same time on other threads don't color with each other's data.
+     *
+     * @param frame     the frame about to be colored
+     * @param renderer  the renderer coloring it, for brushes that want to use its threads
+     * @return the brush to color the frame with, which is this one for brushes that don't depend on the frame
+     */
+    public Brush prepare(Frame frame, Renderer renderer) throws InterruptedException, ExecutionException {
+        return this;
+    }
 }
@@ -0,0 +1,116 @@
+package mandelbrot.core;
+
+/**
+ * A coarse map of what each tile of a rendered view cost to iterate, used to predict the cost of the next view.
+ *
+ * Consecutive frames are mostly pans, small zooms and recolors of each other, and the cost of a point only depends on
+ * where it is in the plane, so the map of the last frame is a good guess for the next. To predict a tile of a new
+ * view, a few points spread over it are mapped back onto the old view and the old cost per pixel found there is
+ * averaged. Parts of the new view the old one never covered get the old view's average.
+ *
+ * Costs are counted in iterations, plus a fixed overhead per pixel for the work every pixel does however fast it
+ * escapes. Every tile is written by exactly one render task, so the map is filled in without locking.
+ */
+class CostMap {
+
+    static final int TILE_SIZE = 32;
+
+    // What computing, storing and coloring a pixel costs on top of its iterations, in iterations
+    static final double PIXEL_COST = 8;
+
+    // Points sampled across each axis of a tile when predicting it
+    private static final int PROBES = 3;
+
+    final int width, height;
+    final int columns, rows;
+    final double left, top, zoom;
+    final View view;
+
+    final double[] costs;
+    double averageDensity;
+
+
+    /**
+     * Constructor for an empty map of a view, to be filled in while the view renders
+     *
+     * @param view the view the costs are measured on
+     */
+    CostMap(View view) {
+        this.view = view;
+
+        width = view.width;
+        height = view.height;
+        columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+        rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+
+        // Taken now, since views can be moved after they are rendered
+        left = view.getRealComponent(0);
+        top = view.getImaginaryComponent(0);
+        zoom = view.zoom;
+
+        costs = new double[columns * rows];
+    }
+
+    /**
+     * Check whether costs measured on this map say anything about another view. They do as long as the same points
+     * are iterated the same way, wherever the view sits.
+     */
+    boolean predicts(View other) {
+        return view.formula.equals(other.formula) && view.isJulia == other.isJulia
+                && (!view.isJulia || (view.juliaReSeed == other.juliaReSeed && view.juliaImSeed == other.juliaImSeed));
+    }
+
+    /**
+     * Predict what a rectangle of another view will cost
+     *
+     * @param other         the view to predict
+     * @param xPixelStart   left edge of the rectangle, inclusive
+     * @param xPixelEnd     right edge of the rectangle, exclusive
+     * @param yPixelStart   top edge of the rectangle, inclusive
+     * @param yPixelEnd     bottom edge of the rectangle, exclusive
+     * @return the predicted cost, in iterations
+     */
+    double predict(View other, int xPixelStart, int xPixelEnd, int yPixelStart, int yPixelEnd) {
+        double density = 0;
+
+        for (int probe = 0; probe < PROBES * PROBES; probe++) {
+            double x = xPixelStart + (probe % PROBES + 0.5) / PROBES * (xPixelEnd - xPixelStart);
+            double y = yPixelStart + (probe / PROBES + 0.5) / PROBES * (yPixelEnd - yPixelStart);
+            density += densityAt(other.getRealComponent(x), other.getImaginaryComponent(y));
+        }
+
+        return density / (PROBES * PROBES) * (xPixelEnd - xPixelStart) * (yPixelEnd - yPixelStart);
+    }
+
+    /**
+     * @return the measured cost per pixel at a point of the plane, or the average if the map does not cover it
+     */
+    private double densityAt(double re, double im) {
+        double x = (re - left) * zoom;
+        double y = (top - im) * zoom;
+
+        if (x < 0 || x >= width || y < 0 || y >= height) return averageDensity;
+
+        int tile = (int) y / TILE_SIZE * columns + (int) x / TILE_SIZE;
+        return costs[tile] / tilePixels(tile);
+    }
+
+    /**
+     * Called once every tile has been measured
+     */
+    void finish() {
+        double total = 0;
+        for (double cost : costs) total += cost;
+        averageDensity = total / ((long) width * height);
+    }
+
+    /**
+     * @return the number of pixels in a tile, which is fewer than a full tile along the right and bottom edges
+     */
+    int tilePixels(int tile) {
+        int column = tile % columns;
+        int row = tile / columns;
+        return (Math.min(width, (column + 1) * TILE_SIZE) - column * TILE_SIZE)
+                * (Math.min(height, (row + 1) * TILE_SIZE) - row * TILE_SIZE);
+    }
+}
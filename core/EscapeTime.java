@@ -0,0 +1,101 @@
+package mandelbrot.core;
+
+/**
+ * The escape-time kernel shared by everything that renders the fractal.
+ *
+ * Each worker thread keeps its own instance and reads the result of the last point it iterated from the fields,
+ * so the inner loop never allocates and never touches JavaFX. The loop itself belongs to the formula.
+ */
+public final class EscapeTime {
+
+    final Formula formula;
+
+    int iteration;
+    double escapeMagnitude;
+    double distance;
+
+
+    /**
+     * Constructor
+     *
+     * @param formula the formula to iterate points under
+     */
+    public EscapeTime(Formula formula) {
+        this.formula = formula;
+    }
+
+    /**
+     * Iterate from a starting point until it escapes or runs out of iterations
+     *
+     * @param re real component of the starting z
+     * @param im imaginary component of the starting z
+     * @param re0 real component of c
+     * @param im0 imaginary component of c
+     * @param maxIterations the iteration budget
+     * @return the number of iterations taken
+     */
+    public int iterate(double re, double im, double re0, double im0, int maxIterations) {
+        return formula.iterate(re, im, re0, im0, maxIterations, this);
+    }
+
+    /**
+     * Iterate the point under a view: the pixel itself for Julia views, or z = 0 with the pixel as c otherwise
+     *
+     * @param view the view the point belongs to
+     * @param re real component of the point
+     * @param im imaginary component of the point
+     * @return the number of iterations taken
+     */
+    public int iterate(View view, double re, double im) {
+        if (view.isDistanceEstimated) {
+            return view.isJulia
+                    ? formula.iterateWithDistance(re, im, view.juliaReSeed, view.juliaImSeed, view.maxIterations, false, this)
+                    : formula.iterateWithDistance(0, 0, re, im, view.maxIterations, true, this);
+        }
+
+        if (view.isJulia) {
+            return formula.iterate(re, im, view.juliaReSeed, view.juliaImSeed, view.maxIterations, this);
+        }
+
+        return formula.iterate(0, 0, re, im, view.maxIterations, this);
+    }
+
+    /**
+     * Store the result of a point. Called by formulas when their loop finishes.
+     *
+     * @param iteration the number of iterations taken
+     * @param escapeMagnitude the magnitude of z when the loop stopped
+     */
+    public void set(int iteration, double escapeMagnitude) {
+        this.iteration = iteration;
+        this.escapeMagnitude = escapeMagnitude;
+    }
+
+    /**
+     * Store the result of a point along with its distance estimate. Called by formulas that track the derivative.
+     *
+     * @param iteration the number of iterations taken
+     * @param escapeMagnitude the magnitude of z when the loop stopped
+     * @param distance the estimated distance to the boundary of the set, 0 for points that never escaped
+     */
+    public void set(int iteration, double escapeMagnitude, double distance) {
+        this.iteration = iteration;
+        this.escapeMagnitude = escapeMagnitude;
+        this.distance = distance;
+    }
+
+    public int getIteration() {
+        return iteration;
+    }
+
+    public double getEscapeMagnitude() {
+        return escapeMagnitude;
+    }
+
+    /**
+     * @return the distance estimate of the last point, in the units of the complex plane, or NaN if there is none
+     */
+    public double getDistance() {
+        return distance;
+    }
+}
@@ -0,0 +1,472 @@
+package mandelbrot.core;
+
+import mandelbrot.brushes.SmoothBrush;
+import mandelbrot.formulas.MandelbrotFormula;
+
+import javax.imageio.ImageIO;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * A scripted camera path through the fractal, rendered as a numbered PNG sequence.
+ *
+ * Keyframe files are plain text with one keyframe per line and '#' starting a comment:
+ *
+ *     # frame  re       im      zoom    [seedRe  seedIm]
+ *     0        -0.75    0       400
+ *     96       -0.7436  0.1318  40000
+ *
+ * The frame column says where on the timeline the keyframe sits. Zoom is in pixels per unit, as in Fractal.
+ * Keyframes with a seed make the path a Julia path, in which case every keyframe needs one. Between keyframes the
+ * center and seed are interpolated linearly and the zoom geometrically, so zooms move at a constant speed.
+ *
+ * When two consecutive frames share a zoom and seed, the second is snapped onto the first one's pixel grid and only
+ * the newly exposed pixels are iterated. When the zoom changes by a small step, the second is resampled from the
+ * first: a pixel takes the values of the nearest pixel of the previous frame if the point that pixel was iterated at
+ * is close enough to its own center, and is iterated otherwise. Every pixel remembers how far from its center its
+ * point is, so values carried over many frames never drift further than that. Frames are written on a separate
+ * thread, so frame N+1 is computed while frame N is being encoded.
+ */
+public class FlightPath {
+
+    // Frames zoomed in or out from the previous one by at most this factor are resampled from it
+    private static final double MAX_RESAMPLED_ZOOM = 1.25;
+
+    // A pixel reuses a value of the previous frame iterated at most this many pixels from its center along each axis
+    private static final double MAX_RESAMPLE_OFFSET = 0.25;
+
+    List<Keyframe> keyframes;
+
+    int width, height;
+    int maxIterations;
+    float colorOffset;
+    Brush brush;
+    Formula formula;
+
+
+    /**
+     * Constructor
+     *
+     * @param keyframes     the keyframes, in timeline order
+     * @param width         width in pixels of each frame
+     * @param height        height in pixels of each frame
+     * @param maxIterations the iteration budget
+     * @param brush         the brush to paint with
+     * @param colorOffset   the color offset used by the brush
+     */
+    public FlightPath(List<Keyframe> keyframes, int width, int height, int maxIterations, Brush brush, float colorOffset) {
+        if (keyframes.size() < 2) throw new IllegalArgumentException("A flight path needs at least two keyframes");
+
+        for (int i = 1; i < keyframes.size(); i++) {
+            if (keyframes.get(i).frame <= keyframes.get(i - 1).frame) {
+                throw new IllegalArgumentException("Keyframes must be in increasing frame order");
+            }
+            if (keyframes.get(i).isJulia != keyframes.get(0).isJulia) {
+                throw new IllegalArgumentException("Either every keyframe has a Julia seed or none do");
+            }
+        }
+
+        this.keyframes = keyframes;
+        this.width = width;
+        this.height = height;
+        this.maxIterations = maxIterations;
+        this.brush = brush;
+        this.colorOffset = colorOffset;
+
+        formula = new MandelbrotFormula();
+    }
+
+    /**
+     * Set the formula points are iterated under
+     *
+     * @param formula
+     */
+    public void setFormula(Formula formula) {
+        this.formula = formula;
+    }
+
+    /**
+     * Read keyframes from a file
+     *
+     * @param file the keyframe file
+     * @return the keyframes in the file
+     */
+    public static List<Keyframe> readKeyframes(File file) throws IOException {
+        List<Keyframe> keyframes = new ArrayList<>();
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            int lineNumber = 0;
+
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+
+                int comment = line.indexOf('#');
+                if (comment >= 0) line = line.substring(0, comment);
+                line = line.trim();
+                if (line.isEmpty()) continue;
+
+                String[] fields = line.split("\\s+");
+                try {
+                    if (fields.length == 4) {
+                        keyframes.add(new Keyframe(Integer.parseInt(fields[0]), Double.parseDouble(fields[1]),
+                                Double.parseDouble(fields[2]), Double.parseDouble(fields[3])));
+                    } else if (fields.length == 6) {
+                        keyframes.add(new Keyframe(Integer.parseInt(fields[0]), Double.parseDouble(fields[1]),
+                                Double.parseDouble(fields[2]), Double.parseDouble(fields[3]),
+                                Double.parseDouble(fields[4]), Double.parseDouble(fields[5])));
+                    } else {
+                        throw new IOException(file + ":" + lineNumber + ": expected 4 or 6 columns");
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IOException(file + ":" + lineNumber + ": " + e.getMessage());
+                }
+            }
+        }
+
+        return keyframes;
+    }
+
+    /**
+     * @return the number of frames on the timeline
+     */
+    public int getFrameCount() {
+        return keyframes.get(keyframes.size() - 1).frame - keyframes.get(0).frame + 1;
+    }
+
+    /**
+     * Interpolate the view at a point on the timeline
+     *
+     * @param frame the frame number, counted from the first keyframe
+     * @return the view at that frame
+     */
+    public View getView(int frame) {
+        int time = keyframes.get(0).frame + frame;
+
+        int next = 1;
+        while (next < keyframes.size() - 1 && keyframes.get(next).frame < time) next++;
+
+        Keyframe a = keyframes.get(next - 1);
+        Keyframe b = keyframes.get(next);
+        double t = Math.max(0, Math.min(1, (time - a.frame) / (double) (b.frame - a.frame)));
+
+        double re = a.re + (b.re - a.re) * t;
+        double im = a.im + (b.im - a.im) * t;
+        double zoom = a.zoom * Math.pow(b.zoom / a.zoom, t);
+
+        // Views store the imaginary center negated
+        if (a.isJulia) {
+            return new View(width, height, re, -im, zoom, maxIterations,
+                    a.juliaReSeed + (b.juliaReSeed - a.juliaReSeed) * t,
+                    a.juliaImSeed + (b.juliaImSeed - a.juliaImSeed) * t)
+                    .setFormula(formula).setDistanceEstimated(brush.isDistanceDependent());
+        }
+
+        return new View(width, height, re, -im, zoom, maxIterations)
+                .setFormula(formula).setDistanceEstimated(brush.isDistanceDependent());
+    }
+
+    /**
+     * Render every frame into a directory, named frame00000.png, frame00001.png, ..., and write the time spent on
+     * each frame to timings.csv in the same directory
+     *
+     * @param directory the directory to write to
+     * @param threads   the number of threads to compute frames with
+     * @return a summary of the timings
+     */
+    public String render(File directory, int threads) throws IOException, InterruptedException, ExecutionException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+
+        long startTime = System.currentTimeMillis();
+        int frameCount = getFrameCount();
+        long totalPixels = (long) frameCount * width * height;
+        long reusedPixels = 0;
+
+        Renderer renderer = new Renderer(threads);
+        ExecutorService encoder = Executors.newSingleThreadExecutor();
+
+        // Two frames take turns: one is being encoded while the other is computed from it
+        Buffer[] buffers = {new Buffer(width, height), new Buffer(width, height)};
+        List<Future<Long>> encodings = new ArrayList<>();
+        long[] computeTimes = new long[frameCount];
+        long[] reused = new long[frameCount];
+
+        try {
+            Buffer previous = null;
+
+            for (int i = 0; i < frameCount; i++) {
+                Buffer buffer = buffers[i % 2];
+                Frame frame = buffer.frame;
+
+                // The buffer is free once the frame that last used it has been written
+                if (i >= 2) encodings.get(i - 2).get();
+
+                long computeStart = System.nanoTime();
+                reused[i] = renderFrame(renderer, getView(i), previous, buffer);
+                computeTimes[i] = System.nanoTime() - computeStart;
+                reusedPixels += reused[i];
+
+                File file = new File(directory, String.format("frame%05d.png", i));
+                encodings.add(encoder.submit(() -> {
+                    long encodeStart = System.nanoTime();
+                    ImageIO.write(frame.toImage(), "png", file);
+                    return System.nanoTime() - encodeStart;
+                }));
+
+                previous = buffer;
+            }
+
+            try (PrintWriter timings = new PrintWriter(new FileWriter(new File(directory, "timings.csv")))) {
+                timings.println("frame,compute_ms,encode_ms,reused_pixels");
+                for (int i = 0; i < frameCount; i++) {
+                    timings.printf("%d,%.3f,%.3f,%d%n", i, computeTimes[i] / 1e6, encodings.get(i).get() / 1e6, reused[i]);
+                }
+            }
+        } finally {
+            renderer.shutdown();
+            encoder.shutdown();
+        }
+
+        long duration = System.currentTimeMillis() - startTime;
+        long slowest = 0;
+        long computeTotal = 0;
+        for (long time : computeTimes) {
+            slowest = Math.max(slowest, time);
+            computeTotal += time;
+        }
+
+        return String.format("Rendered %d frames in %d ms (%.1f ms mean compute, %.1f ms slowest), " +
+                        "reused %.1f%% of pixels from the previous frame",
+                frameCount, duration, computeTotal / 1e6 / frameCount, slowest / 1e6, 100.0 * reusedPixels / totalPixels);
+    }
+
+    /**
+     * Render one frame, reusing whatever part of the previous frame it overlaps
+     *
+     * @return the number of pixels reused
+     */
+    private long renderFrame(Renderer renderer, View view, Buffer previous, Buffer buffer) throws InterruptedException, ExecutionException {
+        Frame frame = buffer.frame;
+        View last = previous == null ? null : previous.frame.view;
+
+        if (view.isSameFractalAs(last) && !view.isAlignedWith(last)
+                && view.zoom <= last.zoom * MAX_RESAMPLED_ZOOM && view.zoom * MAX_RESAMPLED_ZOOM >= last.zoom) {
+            return resampleFrame(renderer, view, previous, buffer);
+        }
+
+        if (!view.isAlignedWith(last)) {
+            renderer.render(view, brush, colorOffset, frame, 0, width, 0, height);
+            buffer.clearOffsets();
+            return 0;
+        }
+
+        // Snap onto the previous frame's pixel grid, which moves the camera by less than half a pixel
+        int xShift = (int) Math.round((view.reCenter - last.reCenter) * view.zoom);
+        int yShift = (int) Math.round((view.imCenter - last.imCenter) * view.zoom);
+        view.reCenter = last.reCenter + xShift / view.zoom;
+        view.imCenter = last.imCenter + yShift / view.zoom;
+
+        if (Math.abs(xShift) >= width || Math.abs(yShift) >= height) {
+            renderer.render(view, brush, colorOffset, frame, 0, width, 0, height);
+            buffer.clearOffsets();
+            return 0;
+        }
+
+        frame.copyShifted(previous.frame, xShift, yShift);
+        buffer.copyShiftedOffsets(previous, xShift, yShift);
+
+        // Fill in the columns and then the rows that scrolled into view
+        int xStart = xShift > 0 ? width - xShift : 0;
+        int xEnd = xShift > 0 ? width : -xShift;
+        int yStart = yShift > 0 ? height - yShift : 0;
+        int yEnd = yShift > 0 ? height : -yShift;
+
+        // A brush that depends on the whole frame would color all of it after each strip, so it colors once at the end
+        Brush stripBrush = brush.isFrameDependent() ? null : brush;
+        renderer.render(view, stripBrush, colorOffset, frame, xStart, xEnd, 0, height);
+        renderer.render(view, stripBrush, colorOffset, frame, xShift > 0 ? 0 : -xShift, xShift > 0 ? width - xShift : width, yStart, yEnd);
+        if (stripBrush == null) renderer.recolor(frame, brush, colorOffset);
+        frame.view = view;
+
+        return (long) (width - Math.abs(xShift)) * (height - Math.abs(yShift));
+    }
+
+    /**
+     * Render a frame zoomed a little from the previous one, one band of rows per thread, taking every pixel it can
+     * from the previous frame and iterating the rest
+     *
+     * @return the number of pixels reused
+     */
+    private long resampleFrame(Renderer renderer, View view, Buffer previous, Buffer buffer) throws InterruptedException, ExecutionException {
+        Frame frame = buffer.frame;
+        frame.view = view;
+        if (view.isDistanceEstimated && frame.distances == null) frame.distances = new double[width * height];
+
+        Collection<Callable<Long>> tasks = new ArrayList<>();
+        int bandHeight = Math.max(1, height / renderer.threads);
+
+        for (int yStart = 0; yStart < height; yStart += bandHeight) {
+            int start = yStart;
+            int end = Math.min(height, yStart + bandHeight);
+            tasks.add(() -> resampleBand(view, previous, buffer, start, end));
+        }
+
+        long reused = 0;
+        for (Future<Long> future : renderer.executor.invokeAll(tasks)) {
+            reused += future.get();
+        }
+
+        // Distances are in pixels, which changed size, so even reused pixels may color differently
+        renderer.recolor(frame, brush, colorOffset);
+        return reused;
+    }
+
+    private long resampleBand(View view, Buffer previous, Buffer buffer, int yStart, int yEnd) {
+        Frame source = previous.frame;
+        View last = source.view;
+        Frame frame = buffer.frame;
+        EscapeTime escapeTime = new EscapeTime(view.formula);
+
+        // How many pixels of the previous frame one pixel of this one spans
+        double scale = last.zoom / view.zoom;
+        double left = last.getRealComponent(0);
+        double top = last.getImaginaryComponent(0);
+        long reused = 0;
+
+        for (int yPixel = yStart; yPixel < yEnd; yPixel++) {
+            double im = view.getImaginaryComponent(yPixel);
+            double ySource = (top - im) * last.zoom;
+            long ySourcePixel = Math.round(ySource);
+
+            for (int xPixel = 0; xPixel < width; xPixel++) {
+                double re = view.getRealComponent(xPixel);
+                double xSource = (re - left) * last.zoom;
+                long xSourcePixel = Math.round(xSource);
+                int index = yPixel * width + xPixel;
+
+                if (xSourcePixel >= 0 && xSourcePixel < width && ySourcePixel >= 0 && ySourcePixel < height) {
+                    int sourceIndex = (int) ySourcePixel * width + (int) xSourcePixel;
+
+                    // Where the nearest pixel of the previous frame was really iterated, from this pixel's center
+                    double xOffset = (xSourcePixel + previous.xOffsets[sourceIndex] - xSource) / scale;
+                    double yOffset = (ySourcePixel + previous.yOffsets[sourceIndex] - ySource) / scale;
+
+                    if (Math.abs(xOffset) <= MAX_RESAMPLE_OFFSET && Math.abs(yOffset) <= MAX_RESAMPLE_OFFSET) {
+                        frame.iterations[index] = source.iterations[sourceIndex];
+                        frame.escapeMagnitudes[index] = source.escapeMagnitudes[sourceIndex];
+                        if (frame.distances != null) frame.distances[index] = source.distances[sourceIndex] / scale;
+                        buffer.xOffsets[index] = (float) xOffset;
+                        buffer.yOffsets[index] = (float) yOffset;
+                        reused++;
+                        continue;
+                    }
+                }
+
+                frame.iterations[index] = escapeTime.iterate(view, re, im);
+                frame.escapeMagnitudes[index] = escapeTime.escapeMagnitude;
+                if (frame.distances != null) frame.distances[index] = escapeTime.distance * view.zoom;
+                buffer.xOffsets[index] = 0;
+                buffer.yOffsets[index] = 0;
+            }
+        }
+
+        return reused;
+    }
+
+    /**
+     * A frame, with how far from the center of each pixel the point it was iterated at is, in pixels
+     */
+    private static final class Buffer {
+        Frame frame;
+        float[] xOffsets;
+        float[] yOffsets;
+
+        Buffer(int width, int height) {
+            frame = new Frame(width, height);
+            xOffsets = new float[width * height];
+            yOffsets = new float[width * height];
+        }
+
+        void clearOffsets() {
+            Arrays.fill(xOffsets, 0);
+            Arrays.fill(yOffsets, 0);
+        }
+
+        /**
+         * Copy the offsets of the pixels this buffer shares with another when it is moved by a whole number of
+         * pixels, as Frame.copyShifted does for the frame. The pixels left over are about to be iterated.
+         */
+        void copyShiftedOffsets(Buffer source, int xShift, int yShift) {
+            int width = frame.width;
+            int height = frame.height;
+            clearOffsets();
+
+            int xStart = Math.max(0, -xShift);
+            int xEnd = Math.min(width, width - xShift);
+            if (xEnd <= xStart) return;
+
+            for (int yPixel = Math.max(0, -yShift); yPixel < Math.min(height, height - yShift); yPixel++) {
+                int from = (yPixel + yShift) * width + xStart + xShift;
+                int to = yPixel * width + xStart;
+                System.arraycopy(source.xOffsets, from, xOffsets, to, xEnd - xStart);
+                System.arraycopy(source.yOffsets, from, yOffsets, to, xEnd - xStart);
+            }
+        }
+    }
+
+    /**
+     * A point on the timeline of a flight path
+     */
+    public static final class Keyframe {
+        int frame;
+        double re, im;
+        double zoom;
+
+        boolean isJulia;
+        double juliaReSeed, juliaImSeed;
+
+        public Keyframe(int frame, double re, double im, double zoom) {
+            this.frame = frame;
+            this.re = re;
+            this.im = im;
+            this.zoom = zoom;
+        }
+
+        public Keyframe(int frame, double re, double im, double zoom, double juliaReSeed, double juliaImSeed) {
+            this(frame, re, im, zoom);
+            this.isJulia = true;
+            this.juliaReSeed = juliaReSeed;
+            this.juliaImSeed = juliaImSeed;
+        }
+    }
+
+    /**
+     * Render a flight path from the command line.
+     *
+     * Usage: java mandelbrot.core.FlightPath keyframes directory [width height maxIterations threads]
+     *
+     * @param args
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2 && args.length != 6) {
+            System.err.println("Usage: java mandelbrot.core.FlightPath keyframes directory [width height maxIterations threads]");
+            System.exit(1);
+        }
+
+        int width = args.length == 6 ? Integer.parseInt(args[2]) : 1280;
+        int height = args.length == 6 ? Integer.parseInt(args[3]) : 720;
+        int maxIterations = args.length == 6 ? Integer.parseInt(args[4]) : 1000;
+        int threads = args.length == 6 ? Integer.parseInt(args[5]) : Runtime.getRuntime().availableProcessors();
+
+        FlightPath path = new FlightPath(readKeyframes(new File(args[0])), width, height, maxIterations,
+                new SmoothBrush(maxIterations), 0);
+
+        System.out.println(path.render(new File(args[1]), threads));
+    }
+}
@@ -0,0 +1,93 @@
+package mandelbrot.core;
+
+/**
+ * This class defines the structure of the Formula classes.
+ * A formula is the map a point is iterated under to decide whether it escapes.
+ *
+ * Each formula runs its whole escape loop itself, so the loop is a single tight piece of code per formula and
+ * the renderer only dispatches once per point, never once per iteration.
+ */
+public abstract class Formula {
+
+    // Escaped points are iterated on until z is this large, at most this many more times, to refine their distance
+    protected static final double DISTANCE_RADIUS = 1000;
+    protected static final int DISTANCE_ITERATIONS = 8;
+
+    /**
+     * Iterate from a starting z with a fixed c until the point escapes or runs out of iterations
+     *
+     * @param re real component of the starting z
+     * @param im imaginary component of the starting z
+     * @param re0 real component of c
+     * @param im0 imaginary component of c
+     * @param maxIterations the iteration budget
+     * @param result receives the iteration count and escape magnitude
+     * @return the number of iterations taken
+     */
+    public abstract int iterate(double re, double im, double re0, double im0, int maxIterations, EscapeTime result);
+
+    /**
+     * Iterate like iterate, recording every z the orbit visits, for orbit density renders. The loop stops early only
+     * when the point escapes, so an orbit shorter than the budget always escaped; one that used the whole budget
+     * escaped if its last point is outside the escape radius.
+     *
+     * @param re real component of the starting z
+     * @param im imaginary component of the starting z
+     * @param re0 real component of c
+     * @param im0 imaginary component of c
+     * @param maxIterations the iteration budget
+     * @param orbit receives the real and imaginary components of each z in turn, with room for maxIterations of them
+     * @return the number of points recorded
+     */
+    public abstract int orbit(double re, double im, double re0, double im0, int maxIterations, double[] orbit);
+
+    /**
+     * Iterate like iterate, while also tracking the derivative of z, and estimate how far the point is from the
+     * boundary of the set. The iteration count and escape magnitude come out exactly as they do from iterate.
+     *
+     * Formulas without a complex derivative have no estimate, which is what this default gives: the plain loop,
+     * with the distance left unknown.
+     *
+     * @param re real component of the starting z
+     * @param im imaginary component of the starting z
+     * @param re0 real component of c
+     * @param im0 imaginary component of c
+     * @param maxIterations the iteration budget
+     * @param respectToC true to differentiate by c, as for the Mandelbrot set, or false by the starting z, as for
+     *                   Julia sets
+     * @param result receives the iteration count, escape magnitude and distance
+     * @return the number of iterations taken
+     */
+    public int iterateWithDistance(double re, double im, double re0, double im0, int maxIterations, boolean respectToC,
+                                   EscapeTime result) {
+        int iteration = iterate(re, im, re0, im0, maxIterations, result);
+        result.distance = Double.NaN;
+        return iteration;
+    }
+
+    /**
+     * The exterior distance estimate |z| ln |z| / |dz| of an escaped point. The estimate gets better the further the
+     * point has escaped, so loops keep going past the escape radius up to DISTANCE_RADIUS before they call this.
+     *
+     * @param magnitude the magnitude of z
+     * @param reDerivative real component of the derivative
+     * @param imDerivative imaginary component of the derivative
+     * @return the distance, in the units of the complex plane
+     */
+    protected static double distance(double magnitude, double reDerivative, double imDerivative) {
+        return magnitude * Math.log(magnitude) / Math.hypot(reDerivative, imDerivative);
+    }
+
+    /**
+     * Formulas without parameters are all alike, so two formulas match when they are of the same class
+     */
+    @Override
+    public boolean equals(Object other) {
+        return other != null && other.getClass() == getClass();
+    }
+
+    @Override
+    public int hashCode() {
+        return getClass().hashCode();
+    }
+}
@@ -1,17 +1,24 @@
 package mandelbrot.core;
 
+import javafx.animation.AnimationTimer;
 import javafx.application.Platform;
 import javafx.beans.property.*;
 import javafx.embed.swing.SwingFXUtils;
 import javafx.scene.image.Image;
 import mandelbrot.brushes.SmoothBrush;
+import mandelbrot.formulas.MandelbrotFormula;
 
 import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
 import java.util.Stack;
-import java.util.concurrent.*;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
 
 /**
  * Created by Kiran Tomlinson on 8/25/16.
@@ -20,6 +27,19 @@ import java.util.concurrent.*;
  */
 public class Fractal {
 
+    // Orbit density renders draw this many points per pixel, shown in this many steps
+    static final double ORBIT_SAMPLES_PER_PIXEL = 2;
+    static final int ORBIT_ROUNDS = 10;
+
+    // Live previews never show more frames per second than this
+    static final double PREVIEW_FRAME_RATE = 30;
+
+    // Iteration budget of the thumbnails in a Julia atlas
+    static final int ATLAS_ITERATIONS = 200;
+
+    // Passing this to setMaxIterations picks the budget for every view automatically
+    public static final int AUTO_ITERATIONS = 0;
+
     double width, height;
     double reCenter, imCenter;
     double zoom;
@@ -28,13 +48,27 @@ public class Fractal {
     DoubleProperty zoomProperty;
     ObjectProperty<Image> imageProperty;
     StringProperty renderingProperty;
+    StringProperty metricsProperty;
+    IntegerProperty iterationsProperty;
+    AnimationTimer progressTimer;
 
     int maxIterations;
     float colorOffset;
     boolean rendering;
     boolean isJulia;
+    boolean isOrbitDensity;
+    boolean isAntiBuddhabrot;
+    boolean isShowingAtlas;
+    boolean isAutoIterations;
+    boolean isOffHeapHistory;
     Image image;
     Brush brush;
+    Formula formula;
+    Frame frame;
+    Renderer renderer;
+    PreviewRenderer preview;
+    IterationBudget iterationBudget;
+    Prefetcher prefetcher;
 
     Stack<FractalState> mandelbrotHistory;
     Stack<FractalState> juliaHistory;
@@ -47,6 +81,17 @@ public class Fractal {
      * @param height    the height in pixels of the fractal
      */
     public Fractal(double width, double height) {
+        this(width, height, null);
+    }
+
+    /**
+     * Constructor that picks up where a saved session left off, showing its last view from disk if it was kept
+     *
+     * @param width     the width in pixels of the fractal
+     * @param height    the height in pixels of the fractal
+     * @param session   the session file to restore, or null to start from the default view
+     */
+    public Fractal(double width, double height, File session) {
 
         mandelbrotHistory = new Stack<>();
         juliaHistory = new Stack<>();
@@ -54,8 +99,22 @@ public class Fractal {
         this.width = width;
         this.height = height;
 
+        renderer = new Renderer();
         imageProperty = new SimpleObjectProperty<>();
         renderingProperty = new SimpleStringProperty("");
+        metricsProperty = new SimpleStringProperty("");
+        iterationBudget = new IterationBudget(renderer);
+
+        // Poll the progress of escape time renders once per screen refresh
+        progressTimer = new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                RenderMetrics metrics = renderer.getMetrics();
+                if (rendering && metrics != null && !metrics.isFinished()) {
+                    renderingProperty.setValue(String.format("Rendering... %.0f%%", 100 * metrics.getProgress()));
+                }
+            }
+        };
 
         // Default values
         zoom = 400;
@@ -65,29 +124,68 @@ public class Fractal {
         reCenter = -0.75;
         imCenter = 0;
         maxIterations = 1000;
+        iterationsProperty = new SimpleIntegerProperty(maxIterations);
+        isAutoIterations = false;
+        isOffHeapHistory = false;
         brush = new SmoothBrush(maxIterations);
+        formula = new MandelbrotFormula();
 
         isJulia = false;
+        isOrbitDensity = false;
+        isAntiBuddhabrot = false;
+        isShowingAtlas = false;
         juliaImSeed = 0;
         juliaReSeed = 0;
 
         // Create fractal
-        generate();
+        if (session == null || !restoreSession(session)) generate();
     }
 
 
     /**
      * Set the max iterations of the fractal and the brush
      *
-     * @param maxIterations
+     * @param maxIterations the budget, or AUTO_ITERATIONS to pick one for every view from a quick probe
      */
     public void setMaxIterations(int maxIterations) {
         if (rendering) return;
-        this.maxIterations = maxIterations;
-        brush.maxIterations = maxIterations;
+
+        isAutoIterations = maxIterations == AUTO_ITERATIONS;
+        if (!isAutoIterations) {
+            this.maxIterations = maxIterations;
+            brush.setMaxIterations(maxIterations);
+            iterationsProperty.set(maxIterations);
+        }
+
         generate();
     }
 
+    /**
+     * Render the views one key press away from the current one while idle, so moving there can show them at once
+     *
+     * @param prefetching
+     */
+    public void setPrefetching(boolean prefetching) {
+        if (prefetching && prefetcher == null) {
+            prefetcher = new Prefetcher(renderer.threads);
+            if (!rendering && !isOrbitDensity) prefetcher.speculate(getView(), isAutoIterations);
+        } else if (!prefetching && prefetcher != null) {
+            prefetcher.shutdown();
+            prefetcher = null;
+        }
+    }
+
+    /**
+     * Keep the iteration data of history states off the heap, and drop their images. Going back then paints the
+     * state again instead of showing its image, but a long history no longer weighs on the garbage collector.
+     * Applies to states added from now on.
+     *
+     * @param offHeapHistory
+     */
+    public void setOffHeapHistory(boolean offHeapHistory) {
+        isOffHeapHistory = offHeapHistory;
+    }
+
     /**
      * Change the brush being used to paint the fractal
      *
@@ -96,6 +194,36 @@ public class Fractal {
     public void setBrush(Brush brush) {
         if (rendering) return;
         this.brush = brush;
+
+        // Frames rendered without distance estimates can't be repainted by a brush that needs them
+        if (brush.isDistanceDependent() && (frame == null || frame.distances == null)) {
+            generate();
+        } else {
+            recolor();
+        }
+    }
+
+    /**
+     * Change the formula the fractal is iterated under
+     *
+     * @param formula
+     */
+    public void setFormula(Formula formula) {
+        if (rendering) return;
+        this.formula = formula;
+        generate();
+    }
+
+    /**
+     * Switch between escape time rendering and orbit density rendering
+     *
+     * @param orbitDensity true to render orbit densities
+     * @param anti true to count the orbits that never escape (the anti-Buddhabrot)
+     */
+    public void setOrbitDensity(boolean orbitDensity, boolean anti) {
+        if (rendering) return;
+        this.isOrbitDensity = orbitDensity;
+        this.isAntiBuddhabrot = anti;
         generate();
     }
 
@@ -107,7 +235,7 @@ public class Fractal {
     public void setColorOffset(float colorOffset) {
         if (rendering) return;
         this.colorOffset = colorOffset;
-        generate();
+        recolor();
     }
 
     /**
@@ -130,6 +258,13 @@ public class Fractal {
 
         generate();
 
+        return getSeedString();
+    }
+
+    /**
+     * @return A string of the re, im seed of the julia set
+     */
+    public String getSeedString() {
         return "Seed: " + String.format("%.3f", juliaReSeed) + (juliaImSeed >= 0 ? " + " : " - ") + String.format("%.3f", Math.abs(juliaImSeed)) + "i";
     }
 
@@ -138,6 +273,7 @@ public class Fractal {
      */
     public void disableJulia() {
         this.isJulia = false;
+        for (FractalState state : juliaHistory) state.release();
         juliaHistory = new Stack<>();
         if (!goToState(mandelbrotHistory.pop())) {
             generate();
@@ -148,6 +284,8 @@ public class Fractal {
     /**
      * These methods move the view of the fractal.
      * These methods will not run while a fractal is rendering.
+     * Moves are a fifth of the frame in pixels, whose size is the width and height rounded down, which is also how
+     * Prefetcher works out the neighbours it renders ahead.
      */
 
     public void moveRight() {
@@ -159,7 +297,7 @@ public class Fractal {
             mandelbrotHistory.push(new FractalState(this));
         }
 
-        reCenter += width / zoom / 5.0;
+        reCenter += (int) width / 5.0 / zoom;
         generate();
     }
 
@@ -172,7 +310,7 @@ public class Fractal {
             mandelbrotHistory.push(new FractalState(this));
         }
 
-        reCenter -= width / zoom / 5.0;
+        reCenter -= (int) width / 5.0 / zoom;
         generate();
     }
 
@@ -185,7 +323,7 @@ public class Fractal {
             mandelbrotHistory.push(new FractalState(this));
         }
 
-        imCenter -= height / zoom / 5.0;
+        imCenter -= (int) height / 5.0 / zoom;
         generate();
     }
 
@@ -198,7 +336,7 @@ public class Fractal {
             mandelbrotHistory.push(new FractalState(this));
         }
 
-        imCenter += height / zoom / 5.0;
+        imCenter += (int) height / 5.0 / zoom;
         generate();
     }
 
@@ -257,6 +395,86 @@ public class Fractal {
         generate();
     }
 
+    /**
+     * Preview the Julia set of a seed. Seeds can come in on every mouse move: only the most recent one is rendered,
+     * roughly at first and then in full once the seeds stop changing, and seeds seen recently are shown from a cache.
+     *
+     * @param reSeed
+     * @param imSeed
+     */
+    public void previewJuliaSeed(double reSeed, double imSeed) {
+        juliaReSeed = reSeed;
+        juliaImSeed = imSeed;
+
+        // The preview has its own threads, since seeds keep coming in while the fractal renders or recolors
+        if (preview == null) preview = new PreviewRenderer(new Renderer(), PREVIEW_FRAME_RATE, this::showPreview);
+        preview.request(getView(), brush, colorOffset);
+    }
+
+    /**
+     * Show a preview frame, and make it the current one. Called on the preview thread.
+     * @param previewFrame
+     */
+    private void showPreview(Frame previewFrame) {
+        BufferedImage newImage = previewFrame.toImage();
+
+        Platform.runLater(() -> {
+            frame = previewFrame;
+            image = SwingFXUtils.toFXImage(newImage, null);
+            imageProperty.setValue(image);
+        });
+    }
+
+    /**
+     * Show an atlas of Julia sets, one for each cell of a grid laid over the current view, in place of the image.
+     * The fractal itself is left as it was, and comes back when the atlas is hidden.
+     *
+     * @param columns   the number of thumbnails across
+     * @param rows      the number of thumbnails down
+     * @param report    receives the atlas report once it is shown, on the application thread
+     * @return the atlas, to find the cell under a click, or null if it cannot be shown right now
+     */
+    public JuliaAtlas showJuliaAtlas(int columns, int rows, Consumer<String> report) {
+        if (rendering || isJulia) return null;
+
+        JuliaAtlas atlas = new JuliaAtlas(renderer, getView(), columns, rows, new SmoothBrush(ATLAS_ITERATIONS), colorOffset);
+        rendering = true;
+        isShowingAtlas = true;
+        renderingProperty.setValue("Rendering atlas...");
+        BufferedImage atlasImage = new BufferedImage((int)width, (int)height, BufferedImage.TYPE_INT_RGB);
+
+        new Thread(() -> {
+            try {
+                atlasImage.setRGB(0, 0, (int)width, (int)height, atlas.render(), 0, (int)width);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+            }
+
+            Platform.runLater(() -> {
+                rendering = false;
+                renderingProperty.setValue("");
+
+                // The atlas may have been hidden before it was done
+                if (isShowingAtlas) {
+                    imageProperty.setValue(SwingFXUtils.toFXImage(atlasImage, null));
+                    report.accept(atlas.getReport());
+                }
+            });
+        }).start();
+
+        return atlas;
+    }
+
+    /**
+     * Put the image of the fractal back in place of the Julia atlas
+     */
+    public void hideJuliaAtlas() {
+        isShowingAtlas = false;
+        imageProperty.setValue(image);
+    }
+
     /**
      * Zoom in based on the position of the zoom rectangle
      * @param xPixel top left x coordinate on the image
@@ -288,13 +506,33 @@ public class Fractal {
      * Uses a thread so it runs in the background and sends progress to the indicator.
      */
     private void generate() {
+        // Real work comes first, so whatever is being rendered ahead is dropped
+        if (prefetcher != null) prefetcher.cancel();
+
         rendering = true;
         renderingProperty.setValue("Rendering...");
         BufferedImage newImage = new BufferedImage((int)width, (int)height, BufferedImage.TYPE_INT_RGB);
 
+        if (!isOrbitDensity) progressTimer.start();
+
         new Thread(() -> {
             try {
-                combineSlices(newImage);
+                if (isOrbitDensity) {
+                    renderOrbitDensity(newImage);
+                } else {
+                    if (isAutoIterations) chooseIterations();
+
+                    Prefetcher ahead = prefetcher;
+                    Frame prefetched = ahead == null ? null : ahead.take(getView());
+                    if (prefetched != null) {
+                        renderer.recolor(prefetched, brush, colorOffset);
+                        display(prefetched, newImage);
+                    } else {
+                        combineSlices(newImage);
+                    }
+
+                    if (ahead != null) ahead.speculate(getView(), isAutoIterations);
+                }
             } catch (InterruptedException e) {
                 e.printStackTrace();
             } catch (ExecutionException e) {
@@ -304,109 +542,248 @@ public class Fractal {
     }
 
     /**
-     * Creates an appropriate number of slice generator tasks based on the number of available cores.
-     * @param newImage
+     * @return the metrics of the last escape time render, or the one in progress
      */
-    private void combineSlices(BufferedImage newImage) throws InterruptedException, ExecutionException {
+    public RenderMetrics getMetrics() {
+        return renderer.getMetrics();
+    }
 
-        long startTime = System.currentTimeMillis();
+    /**
+     * Method to repaint the fractal with the current brush and color offset.
+     * The iteration data of the current frame is reused, so nothing is iterated again.
+     */
+    private void recolor() {
+        if (frame == null || isOrbitDensity) {
+            generate();
+            return;
+        }
 
-        Collection<Callable<BufferedImage>> tasks = new ArrayList<>();
-        int processors = Runtime.getRuntime().availableProcessors();
+        rendering = true;
+        renderingProperty.setValue("Rendering...");
+        BufferedImage newImage = new BufferedImage((int)width, (int)height, BufferedImage.TYPE_INT_RGB);
 
-        int sliceWidth = (int)(width / processors);
-        for (int i = 0; i < processors; i++) {
-            GenerateFractalSliceTask task = new GenerateFractalSliceTask(sliceWidth * i , sliceWidth * (i + 1), 0, (int) height);
-            tasks.add(task);
-        }
+        // History states share the current frame, so paint a copy
+        Frame newFrame = frame.copy();
 
-        ExecutorService executor = Executors.newFixedThreadPool(processors);
-        List<Future<BufferedImage>> slices = executor.invokeAll(tasks);
+        new Thread(() -> {
+            try {
+                renderer.recolor(newFrame, brush, colorOffset);
+                display(newFrame, newImage);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+            }
+        }).start();
+    }
 
+    /**
+     * Pick the budget of the current view, and size the brush for it. Runs on the render thread before the view is
+     * rendered, while nothing else can change the budget.
+     */
+    private void chooseIterations() throws InterruptedException, ExecutionException {
+        int budget = iterationBudget.choose(getView());
+        maxIterations = budget;
+        brush.setMaxIterations(budget);
 
-        int i = 0;
-        for (Future<BufferedImage> futureSlice : slices) {
-            BufferedImage slice = futureSlice.get();
-            newImage.createGraphics().drawImage(slice, sliceWidth * i, 0, null);
-            i++;
-        }
+        Platform.runLater(() -> iterationsProperty.set(budget));
+    }
+
+    /**
+     * Renders the current view on the renderer's worker threads, balanced by the cost of the last view.
+     * @param newImage
+     */
+    private void combineSlices(BufferedImage newImage) throws InterruptedException, ExecutionException {
+        display(renderer.render(getView(), brush, colorOffset), newImage);
+    }
 
-        executor.shutdown();
+    /**
+     * Renders the orbit density of the current view, showing the image after every round of samples
+     * @param newImage
+     */
+    private void renderOrbitDensity(BufferedImage newImage) throws InterruptedException, ExecutionException {
+        OrbitDensity orbitDensity = new OrbitDensity(renderer, getView(), isAntiBuddhabrot, colorOffset);
+        long samples = (long) (width * height * ORBIT_SAMPLES_PER_PIXEL);
+
+        int[] pixels = orbitDensity.render(samples, ORBIT_ROUNDS, progress -> {
+            BufferedImage progressImage = new BufferedImage((int)width, (int)height, BufferedImage.TYPE_INT_RGB);
+            progressImage.setRGB(0, 0, (int)width, (int)height, progress, 0, (int)width);
+            String readout = String.format("Rendering... %.0f%% (%.2fM samples/s)",
+                    100.0 * orbitDensity.samplesTaken / samples, orbitDensity.getSamplesPerSecond() / 1e6);
+
+            Platform.runLater(() -> {
+                renderingProperty.setValue(readout);
+                imageProperty.setValue(SwingFXUtils.toFXImage(progressImage, null));
+            });
+        });
+
+        newImage.setRGB(0, 0, (int)width, (int)height, pixels, 0, (int)width);
 
         Platform.runLater(() -> {
             rendering = false;
+            frame = null;
             renderingProperty.setValue("");
             image = SwingFXUtils.toFXImage(newImage, null);
             imageProperty.setValue(image);
         });
-
-        long endTime = System.currentTimeMillis();
-        long duration = (endTime - startTime);
-//        System.out.println("Rendered in: " + duration + "ms");
     }
 
     /**
-     * This class is a worker that generates a slice of the Mandelbrot/Julia set.
+     * Show a finished frame, and make it the current one
+     * @param newFrame
+     * @param newImage
      */
-    private final class GenerateFractalSliceTask implements Callable<BufferedImage> {
-        int xPixelStart;
-        int xPixelEnd;
-        int yPixelStart;
-        int yPixelEnd;
+    private void display(Frame newFrame, BufferedImage newImage) {
+        newImage.setRGB(0, 0, newFrame.width, newFrame.height, newFrame.pixels, 0, newFrame.width);
+
+        RenderMetrics metrics = renderer.getMetrics();
+        String readout = metrics == null ? null : metrics
+                + (isAutoIterations ? "\n" + iterationBudget.getReport() : "")
+                + (prefetcher != null ? "\n" + prefetcher.getReport() : "");
 
-        GenerateFractalSliceTask(int xPixelStart, int xPixelEnd, int yPixelStart, int yPixelEnd) {
-            this.xPixelStart = xPixelStart;
-            this.xPixelEnd = xPixelEnd;
-            this.yPixelStart = yPixelStart;
-            this.yPixelEnd = yPixelEnd;
+        Platform.runLater(() -> {
+            progressTimer.stop();
+            rendering = false;
+            frame = newFrame;
+            renderingProperty.setValue("");
+            if (readout != null) metricsProperty.setValue(readout);
+            image = SwingFXUtils.toFXImage(newImage, null);
+            imageProperty.setValue(image);
+        });
+    }
+
+    /**
+     * Save the current view, its settings and the history behind it. The iteration data of the current view and the
+     * most recent views in history is kept too, up to a number of frames, so they show at once when restored.
+     *
+     * @param file      the session file
+     * @param frames    how many frames of iteration data to keep at most
+     */
+    public void saveSession(File file, int frames) throws IOException {
+        // States restored from a session may still be reading from the file about to be replaced
+        for (FractalState state : mandelbrotHistory) {
+            if (state.saved != null) state.saved.detach();
+        }
+        for (FractalState state : juliaHistory) {
+            if (state.saved != null) state.saved.detach();
         }
 
-        @Override
-        public BufferedImage call() throws Exception {
-            BufferedImage slice = new BufferedImage(xPixelEnd - xPixelStart, yPixelEnd - yPixelStart, BufferedImage.TYPE_INT_RGB);
+        FractalState current = new FractalState(this, false);
 
-            // Iterate over every pixel on the screen, figure out if it's in the set, and color it
-            for (int xPixel = xPixelStart; xPixel < xPixelEnd; xPixel++) {
+        // The frame on screen is the last one finished, which is not the current view while a render is going on
+        if (frame == null || !getView().equals(frame.view)) current.frame = null;
 
-                for (int yPixel = yPixelStart; yPixel < yPixelEnd; yPixel++) {
+        // Newest first: the current view, then the history of the set being explored, then the other one
+        List<FractalState> newestFirst = new ArrayList<>();
+        newestFirst.add(current);
+        Stack<FractalState> explored = isJulia ? juliaHistory : mandelbrotHistory;
+        Stack<FractalState> other = isJulia ? mandelbrotHistory : juliaHistory;
+        for (int i = explored.size() - 1; i >= 0; i--) newestFirst.add(explored.get(i));
+        for (int i = other.size() - 1; i >= 0; i--) newestFirst.add(other.get(i));
 
-                    double re0, im0, re, im;
+        Set<FractalState> kept = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (FractalState state : newestFirst) {
+            if (kept.size() < frames && state.hasFrame()) kept.add(state);
+        }
 
-                    if (isJulia) {
-                        re0 = juliaReSeed;
-                        im0 = juliaImSeed;
-                        re = getRealComponent(xPixel);
-                        im = getImaginaryComponent(yPixel);
-                    } else {
-                        re0 = getRealComponent(xPixel);
-                        im0 = getImaginaryComponent(yPixel);
-                        re = 0;
-                        im = 0;
-                    }
+        SessionFile session = new SessionFile();
+        session.isAutoIterations = isAutoIterations;
+        session.current = toSaved(current, isJulia, kept.contains(current));
+        for (FractalState state : mandelbrotHistory) session.mandelbrotHistory.add(toSaved(state, false, kept.contains(state)));
+        for (FractalState state : juliaHistory) session.juliaHistory.add(toSaved(state, true, kept.contains(state)));
 
-                    double reSqr = re * re;
-                    double imSqr = im * im;
+        session.write(file);
+    }
 
-                    int iteration = 0;
+    private SessionFile.State toSaved(FractalState state, boolean julia, boolean keepFrame) {
+        SessionFile.State saved = new SessionFile.State();
+        saved.reCenter = state.reCenter;
+        saved.imCenter = state.imCenter;
+        saved.zoom = state.zoom;
+        saved.readableZoom = state.readableZoom;
+        saved.maxIterations = state.maxIterations;
+        saved.colorOffset = (float) state.colorOffset;
+        saved.brush = state.brush;
+        saved.formula = state.formula;
+        saved.isOrbitDensity = state.isOrbitDensity;
+        saved.isAntiBuddhabrot = state.isAntiBuddhabrot;
+        saved.isJulia = julia;
+        saved.juliaReSeed = juliaReSeed;
+        saved.juliaImSeed = juliaImSeed;
+        if (keepFrame) saved.frame = state.getFrame();
+        return saved;
+    }
 
-                    while (reSqr + imSqr < 4 && iteration < maxIterations) {
-                        im = 2 * (re * im) + im0;
-                        re = reSqr - imSqr + re0;
-                        reSqr = re * re;
-                        imSqr = im * im;
+    /**
+     * Pick up where a saved session left off. The last view is painted from its iteration data if that was kept and
+     * fits this fractal, and the frames of history states are only read from disk when going back to them.
+     *
+     * @param file the session file
+     * @return true if the session was restored and is being shown, false to render the default view instead
+     */
+    private boolean restoreSession(File file) {
+        if (!file.exists()) return false;
+
+        SessionFile session;
+        try {
+            session = SessionFile.read(file);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
 
-                        iteration++;
-                    }
+        SessionFile.State current = session.current;
+        reCenter = current.reCenter;
+        imCenter = current.imCenter;
+        zoom = current.zoom;
+        zoomProperty.setValue(current.readableZoom);
+        maxIterations = current.maxIterations;
+        iterationsProperty.set(maxIterations);
+        isAutoIterations = session.isAutoIterations;
+        brush = current.brush;
+        formula = current.formula;
+        colorOffset = current.colorOffset;
+        isOrbitDensity = current.isOrbitDensity;
+        isAntiBuddhabrot = current.isAntiBuddhabrot;
+        isJulia = current.isJulia;
+        juliaReSeed = current.juliaReSeed;
+        juliaImSeed = current.juliaImSeed;
+
+        for (SessionFile.State state : session.mandelbrotHistory) mandelbrotHistory.push(new FractalState(state));
+        for (SessionFile.State state : session.juliaHistory) juliaHistory.push(new FractalState(state));
+
+        Frame saved = isOrbitDensity ? null : current.getFrame();
+        if (!isPaintable(saved)) {
+            generate();
+            return true;
+        }
 
-                    double escapeMagnitude = Math.sqrt(reSqr + imSqr);
+        frame = saved;
+        recolor();
+        return true;
+    }
 
-                    // Use the brush to pick a color
-                    slice.setRGB(xPixel - xPixelStart, yPixel, brush.getColor(iteration, escapeMagnitude, colorOffset));
-                }
-            }
+    /**
+     * Check if a frame kept without its image, from a saved session or off the heap, can be painted in place of
+     * rendering the current view. Sessions do not keep distance estimates, so brushes that draw with them need a
+     * new render.
+     */
+    private boolean isPaintable(Frame saved) {
+        return saved != null && saved.width == (int) width && saved.height == (int) height
+                && (!brush.isDistanceDependent() || saved.distances != null);
+    }
 
-            return slice;
+    /**
+     * @return the current view parameters, detached from this fractal
+     */
+    public View getView() {
+        if (isJulia) {
+            return new View((int) width, (int) height, reCenter, imCenter, zoom, maxIterations, juliaReSeed, juliaImSeed)
+                    .setFormula(formula).setDistanceEstimated(brush.isDistanceDependent());
         }
+
+        return new View((int) width, (int) height, reCenter, imCenter, zoom, maxIterations)
+                .setFormula(formula).setDistanceEstimated(brush.isDistanceDependent());
     }
 
     /**
@@ -432,7 +809,8 @@ public class Fractal {
     }
 
     /**
-     * Set this fractal's values to those stored in a FractalState
+     * Set this fractal's values to those stored in a FractalState. The state is done with afterwards, and gives back
+     * any memory it kept off the heap.
      * @param state
      */
     private boolean goToState(FractalState state) {
@@ -441,12 +819,33 @@ public class Fractal {
         imCenter = state.imCenter;
         zoomProperty.setValue(state.readableZoom);
 
-        if (state.isCompatible(this)) {
-            image = state.image;
-            imageProperty.setValue(image);
-            return true;
-        }
+        try {
+            if (state.isCompatible(this)) {
+                if (isAutoIterations) {
+                    maxIterations = state.maxIterations;
+                    brush.setMaxIterations(maxIterations);
+                    iterationsProperty.set(maxIterations);
+                }
+
+                // States restored from a session or kept off the heap have no image, so paint their iteration data
+                if (state.image == null) {
+                    Frame stateFrame = state.getFrame();
+                    if (!isPaintable(stateFrame)) return false;
 
-        return false;
+                    frame = stateFrame;
+                    recolor();
+                    return true;
+                }
+
+                image = state.image;
+                frame = state.frame;
+                imageProperty.setValue(image);
+                return true;
+            }
+
+            return false;
+        } finally {
+            state.release();
+        }
     }
 }
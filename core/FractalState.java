@@ -11,30 +11,107 @@ public class FractalState {
     double readableZoom;
 
     Brush brush;
+    Formula formula;
     double colorOffset;
     int maxIterations;
+    boolean isOrbitDensity;
+    boolean isAntiBuddhabrot;
 
     Image image;
+    Frame frame;
+
+    // Where this state came from if it was restored from a session file, which only kept its iteration data
+    SessionFile.State saved;
+
+    // The iteration data of this state when it is kept off the heap, in place of the image and frame
+    OffHeapFrame offHeap;
 
     FractalState(Fractal fractal) {
+        this(fractal, fractal.isOffHeapHistory);
+    }
+
+    /**
+     * Constructor
+     * @param fractal
+     * @param isOffHeap true to keep the iteration data off the heap, without the image
+     */
+    FractalState(Fractal fractal, boolean isOffHeap) {
         reCenter = fractal.reCenter;
         imCenter = fractal.imCenter;
         zoom = fractal.zoom;
         readableZoom = fractal.zoomProperty.doubleValue();
 
         brush = fractal.brush;
+        formula = fractal.formula;
         colorOffset = fractal.colorOffset;
         maxIterations = fractal.maxIterations;
+        isOrbitDensity = fractal.isOrbitDensity;
+        isAntiBuddhabrot = fractal.isAntiBuddhabrot;
 
         image = fractal.image;
+        frame = fractal.frame;
+
+        // The image is made again from the frame when the state is gone back to
+        if (isOffHeap && frame != null) {
+            offHeap = OffHeapFrame.store(frame);
+            image = null;
+            frame = null;
+        }
+    }
+
+    /**
+     * Constructor for a state restored from a session file. It has no image, and its frame is read when first used.
+     * @param saved
+     */
+    FractalState(SessionFile.State saved) {
+        reCenter = saved.reCenter;
+        imCenter = saved.imCenter;
+        zoom = saved.zoom;
+        readableZoom = saved.readableZoom;
+
+        brush = saved.brush;
+        formula = saved.formula;
+        colorOffset = saved.colorOffset;
+        maxIterations = saved.maxIterations;
+        isOrbitDensity = saved.isOrbitDensity;
+        isAntiBuddhabrot = saved.isAntiBuddhabrot;
+
+        this.saved = saved;
+    }
+
+    /**
+     * @return true if this state has iteration data, in memory or in its session file
+     */
+    boolean hasFrame() {
+        return frame != null || offHeap != null || saved != null && saved.hasFrame();
+    }
+
+    /**
+     * @return the iteration data of this state, or null if there is none
+     */
+    Frame getFrame() {
+        if (frame != null) return frame;
+        if (offHeap != null) return offHeap.load();
+        return saved != null ? saved.getFrame() : null;
+    }
+
+    /**
+     * Give back the memory of a state that is leaving the history for good
+     */
+    void release() {
+        if (offHeap != null) offHeap.release();
+        offHeap = null;
     }
 
     /**
      * Check if a fractal is compatible with this state, ie they have the same parameters that affect the image.
+     * Automatic budgets are picked per view, so a state from the same session is compatible whatever its budget.
      * @param fractal
      * @return true if they match, else false
      */
     public boolean isCompatible(Fractal fractal) {
-        return fractal.brush.getClass().equals(brush.getClass()) && fractal.colorOffset == colorOffset && fractal.maxIterations == maxIterations;
+        return fractal.brush.getClass().equals(brush.getClass()) && fractal.formula.equals(formula) && fractal.colorOffset == colorOffset
+                && (fractal.maxIterations == maxIterations || fractal.isAutoIterations)
+                && fractal.isOrbitDensity == isOrbitDensity && fractal.isAntiBuddhabrot == isAntiBuddhabrot;
     }
 }
@@ -0,0 +1,118 @@
+package mandelbrot.core;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * A rendered frame. Alongside the colored pixels it retains what the escape loop produced for every pixel,
+ * so the frame can be recolored, refined or partially reused without iterating again.
+ */
+public class Frame {
+
+    final int width, height;
+    final int[] iterations;
+    final double[] escapeMagnitudes;
+    final int[] pixels;
+
+    // Distance of every pixel to the set, in pixels, kept only when the view estimates it
+    double[] distances;
+
+    View view;
+    Brush brush;
+    float colorOffset;
+
+
+    /**
+     * Constructor
+     *
+     * @param width     the width in pixels
+     * @param height    the height in pixels
+     */
+    public Frame(int width, int height) {
+        this.width = width;
+        this.height = height;
+
+        iterations = new int[width * height];
+        escapeMagnitudes = new double[width * height];
+        pixels = new int[width * height];
+    }
+
+    /**
+     * @return a copy of this frame that can be modified independently
+     */
+    public Frame copy() {
+        Frame copy = new Frame(width, height);
+        System.arraycopy(iterations, 0, copy.iterations, 0, iterations.length);
+        System.arraycopy(escapeMagnitudes, 0, copy.escapeMagnitudes, 0, escapeMagnitudes.length);
+        System.arraycopy(pixels, 0, copy.pixels, 0, pixels.length);
+        if (distances != null) copy.distances = distances.clone();
+        copy.view = view;
+        copy.brush = brush;
+        copy.colorOffset = colorOffset;
+        return copy;
+    }
+
+    public View getView() {
+        return view;
+    }
+
+    /**
+     * @return the brush the frame was colored with, prepared from the frame if the brush depends on it
+     */
+    public Brush getBrush() {
+        return brush;
+    }
+
+    public int[] getPixels() {
+        return pixels;
+    }
+
+    public int[] getIterations() {
+        return iterations;
+    }
+
+    public double[] getEscapeMagnitudes() {
+        return escapeMagnitudes;
+    }
+
+    /**
+     * @return the distance estimate of every pixel, in pixels, or null if the view did not estimate them
+     */
+    public double[] getDistances() {
+        return distances;
+    }
+
+    /**
+     * Copy the pixels that two frames have in common when this frame is the source moved by a whole number of pixels
+     *
+     * @param source the frame to copy from
+     * @param xShift how many pixels right this frame's view is of the source's
+     * @param yShift how many pixels down this frame's view is of the source's
+     */
+    public void copyShifted(Frame source, int xShift, int yShift) {
+        int xStart = Math.max(0, -xShift);
+        int xEnd = Math.min(width, width - xShift);
+        if (xEnd <= xStart) return;
+
+        for (int yPixel = Math.max(0, -yShift); yPixel < Math.min(height, height - yShift); yPixel++) {
+            int from = (yPixel + yShift) * width + xStart + xShift;
+            int to = yPixel * width + xStart;
+            int length = xEnd - xStart;
+
+            System.arraycopy(source.iterations, from, iterations, to, length);
+            System.arraycopy(source.escapeMagnitudes, from, escapeMagnitudes, to, length);
+            System.arraycopy(source.pixels, from, pixels, to, length);
+            if (distances != null && source.distances != null) {
+                System.arraycopy(source.distances, from, distances, to, length);
+            }
+        }
+    }
+
+    /**
+     * @return the pixels of this frame as an image
+     */
+    public BufferedImage toImage() {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, width, height, pixels, 0, width);
+        return image;
+    }
+}
@@ -0,0 +1,174 @@
+package mandelbrot.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Picks the iteration budget of a view automatically, so deep views get enough iterations to resolve and shallow ones
+ * don't spend time on iterations nobody sees.
+ *
+ * The zoom gives a first guess. A quick pass over a small, low resolution copy of the view then checks it: as long as
+ * doubling the budget lets more than a sliver of the still unresolved pixels escape, the budget is doubled, iterating
+ * only those pixels again. Once more iterations no longer change the image, the budget is trimmed down to just above
+ * the slowest escape the probe saw, which saves a lot on views full of interior points.
+ *
+ * The probe cannot tell interior points from points that only escape well beyond the budget, so a deep view where
+ * nothing escapes for a long while relies on the guess from the zoom being high enough to start with.
+ */
+public class IterationBudget {
+
+    static final int MIN_BUDGET = 64;
+    static final int MAX_BUDGET = 1 << 16;
+
+    // Budget for the default view, and how much it grows per factor of ten zoomed in
+    private static final int BASE_BUDGET = 250;
+
+    // Pixels in the probe, and the share of them that may still change when the budget is left where it is
+    private static final int PROBE_PIXELS = 4096;
+    private static final double CHANGE_THRESHOLD = 0.005;
+
+    // Headroom above the slowest escape in the probe, for full resolution pixels that take a little longer
+    private static final double MARGIN = 1.25;
+
+    Renderer renderer;
+
+    int budget;
+    int probePixels;
+    int rounds;
+    long probeIterations;
+    long elapsedNanos;
+
+
+    /**
+     * Constructor
+     *
+     * @param renderer the renderer whose threads do the probing
+     */
+    public IterationBudget(Renderer renderer) {
+        this.renderer = renderer;
+    }
+
+    /**
+     * A first guess at the budget from the zoom alone
+     *
+     * @param zoom pixels per unit, where the default view is 400
+     * @return the budget
+     */
+    public static int fromZoom(double zoom) {
+        double magnification = Math.max(1, zoom / 400);
+        return (int) Math.min(MAX_BUDGET, BASE_BUDGET * (1 + Math.log10(magnification)));
+    }
+
+    /**
+     * Probe a view and pick its budget. The view itself is not changed.
+     *
+     * @param view the view to pick a budget for
+     * @return the budget
+     */
+    public int choose(View view) throws InterruptedException, ExecutionException {
+        long startTime = System.nanoTime();
+
+        View probe = view.scaledDown(Math.max(1, (int) Math.ceil(Math.sqrt((double) view.width * view.height / PROBE_PIXELS))));
+        probePixels = probe.width * probe.height;
+        rounds = 1;
+        probeIterations = 0;
+
+        int[] iterations = new int[probePixels];
+        int[] all = new int[probePixels];
+        for (int i = 0; i < all.length; i++) all[i] = i;
+
+        budget = Math.max(MIN_BUDGET, fromZoom(view.zoom));
+        iterate(probe, all, budget, iterations);
+
+        // Keep doubling while the extra iterations still let pixels escape
+        while (budget < MAX_BUDGET) {
+            int[] unresolved = unresolved(iterations, budget);
+            if (unresolved.length == 0) break;
+
+            int doubled = Math.min(MAX_BUDGET, 2 * budget);
+            int[] retried = new int[probePixels];
+            iterate(probe, unresolved, doubled, retried);
+            rounds++;
+
+            int changed = 0;
+            for (int index : unresolved) {
+                if (retried[index] < doubled) changed++;
+            }
+            if (changed <= CHANGE_THRESHOLD * probePixels) break;
+
+            for (int index : unresolved) iterations[index] = retried[index];
+            budget = doubled;
+        }
+
+        // Nothing in the probe escaped late, so trim the budget down to the slowest escape
+        int slowest = 0;
+        for (int iteration : iterations) {
+            if (iteration < budget) slowest = Math.max(slowest, iteration);
+        }
+        budget = Math.max(MIN_BUDGET, Math.min(budget, (int) Math.ceil(slowest * MARGIN)));
+
+        elapsedNanos = System.nanoTime() - startTime;
+        return budget;
+    }
+
+    /**
+     * @return a summary of the last choice
+     */
+    public String getReport() {
+        return String.format("Auto budget %d from %d probe pixels in %d rounds (%.1fM iterations, %.0f ms)",
+                budget, probePixels, rounds, probeIterations / 1e6, elapsedNanos / 1e6);
+    }
+
+    private static int[] unresolved(int[] iterations, int budget) {
+        int count = 0;
+        for (int iteration : iterations) {
+            if (iteration >= budget) count++;
+        }
+
+        int[] unresolved = new int[count];
+        count = 0;
+        for (int i = 0; i < iterations.length; i++) {
+            if (iterations[i] >= budget) unresolved[count++] = i;
+        }
+        return unresolved;
+    }
+
+    /**
+     * Iterate some pixels of the probe with a budget, split evenly across the pool
+     */
+    private void iterate(View probe, int[] indices, int budget, int[] iterations) throws InterruptedException, ExecutionException {
+        Collection<Callable<Long>> tasks = new ArrayList<>();
+        int chunkSize = Math.max(1, (indices.length + renderer.threads - 1) / renderer.threads);
+
+        for (int start = 0; start < indices.length; start += chunkSize) {
+            int chunkStart = start;
+            int chunkEnd = Math.min(indices.length, start + chunkSize);
+
+            tasks.add(() -> {
+                EscapeTime escapeTime = new EscapeTime(probe.formula);
+                long total = 0;
+
+                for (int i = chunkStart; i < chunkEnd; i++) {
+                    int index = indices[i];
+                    double re = probe.getRealComponent(index % probe.width);
+                    double im = probe.getImaginaryComponent(index / probe.width);
+
+                    int iteration = probe.isJulia
+                            ? escapeTime.iterate(re, im, probe.juliaReSeed, probe.juliaImSeed, budget)
+                            : escapeTime.iterate(0, 0, re, im, budget);
+                    iterations[index] = iteration;
+                    total += iteration;
+                }
+
+                return total;
+            });
+        }
+
+        for (Future<Long> future : renderer.executor.invokeAll(tasks)) {
+            probeIterations += future.get();
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package mandelbrot.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Renders a grid of small Julia sets over a view of the Mandelbrot set, each one seeded with the point at the center
+ * of its cell, to help pick a seed without hovering over points one at a time.
+ *
+ * All thumbnails are rendered as a single batch on the renderer's pool, one task each, at the low iteration budget
+ * of the brush. A seed outside the Mandelbrot set gives a disconnected Julia set with no interior, so for those the
+ * budget is cut down to a few times the number of iterations the seed itself took to escape: a point that lasts
+ * longer than that is within a hair of the dust anyway. Thumbnails of connected sets are queued first, since they
+ * take the longest.
+ */
+public class JuliaAtlas {
+
+    // Budget for disconnected seeds: this many times the escape time of the seed, plus some slack
+    private static final int CRITICAL_FACTOR = 4;
+    private static final int CRITICAL_SLACK = 16;
+
+    // Julia sets of the formulas here fit in a disc of this radius
+    private static final double JULIA_RADIUS = 2;
+
+    Renderer renderer;
+    View view;
+    int columns, rows;
+    Brush brush;
+    float colorOffset;
+
+    long thumbnails;
+    long disconnected;
+    long iterations;
+    long elapsedNanos;
+
+
+    /**
+     * Constructor
+     *
+     * @param renderer      the renderer whose threads do the work
+     * @param view          the Mandelbrot view to lay the grid over, which also sets the size of the atlas
+     * @param columns       the number of thumbnails across
+     * @param rows          the number of thumbnails down
+     * @param brush         the brush to paint with, whose maxIterations is the budget of every thumbnail
+     * @param colorOffset   the color offset used by the brush
+     */
+    public JuliaAtlas(Renderer renderer, View view, int columns, int rows, Brush brush, float colorOffset) {
+        if (brush.isFrameDependent()) throw new IllegalArgumentException("Thumbnails are colored as they are iterated");
+        if (columns < 1 || rows < 1) throw new IllegalArgumentException("An atlas needs at least one cell");
+
+        this.renderer = renderer;
+        this.view = view;
+        this.columns = columns;
+        this.rows = rows;
+        this.brush = brush;
+        this.colorOffset = colorOffset;
+    }
+
+    /**
+     * Render every thumbnail
+     *
+     * @return the pixels of the atlas, the size of the view
+     */
+    public int[] render() throws InterruptedException, ExecutionException {
+        long startTime = System.nanoTime();
+        int[] pixels = new int[view.width * view.height];
+
+        List<Thumbnail> cells = new ArrayList<>();
+        EscapeTime escapeTime = new EscapeTime(view.formula);
+
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                Thumbnail thumbnail = new Thumbnail(column, row);
+
+                // The seed's own orbit tells whether its Julia set is connected
+                int escape = escapeTime.iterate(0, 0, thumbnail.reSeed, thumbnail.imSeed, brush.maxIterations);
+                thumbnail.budget = escape < brush.maxIterations
+                        ? Math.min(brush.maxIterations, CRITICAL_FACTOR * escape + CRITICAL_SLACK)
+                        : brush.maxIterations;
+
+                if (escape < brush.maxIterations) disconnected++;
+                cells.add(thumbnail);
+            }
+        }
+
+        cells.sort((a, b) -> Integer.compare(b.budget, a.budget));
+
+        List<Callable<Long>> tasks = new ArrayList<>();
+        for (Thumbnail thumbnail : cells) {
+            tasks.add(() -> thumbnail.render(pixels));
+        }
+
+        for (Future<Long> future : renderer.executor.invokeAll(tasks)) {
+            iterations += future.get();
+        }
+
+        thumbnails += cells.size();
+        elapsedNanos += System.nanoTime() - startTime;
+
+        return pixels;
+    }
+
+    /**
+     * Find the cell under a point of the atlas
+     *
+     * @param xPixel
+     * @param yPixel
+     * @return the x and y pixel coordinates of the center of the cell, where its seed comes from
+     */
+    public double[] getCellCenter(double xPixel, double yPixel) {
+        int column = Math.max(0, Math.min(columns - 1, (int) (xPixel * columns / view.width)));
+        int row = Math.max(0, Math.min(rows - 1, (int) (yPixel * rows / view.height)));
+
+        return new double[]{(column + 0.5) * view.width / columns, (row + 0.5) * view.height / rows};
+    }
+
+    public double getThumbnailsPerSecond() {
+        return elapsedNanos == 0 ? 0 : thumbnails / (elapsedNanos / 1e9);
+    }
+
+    /**
+     * @return a summary of the last render
+     */
+    public String getReport() {
+        return String.format("%d Julia sets (%d disconnected) in %.0f ms, %.1f thumbnails/s, %.1fM iterations",
+                thumbnails, disconnected, elapsedNanos / 1e6, getThumbnailsPerSecond(), iterations / 1e6);
+    }
+
+    /**
+     * One cell of the grid
+     */
+    private final class Thumbnail {
+        int xPixelStart, xPixelEnd;
+        int yPixelStart, yPixelEnd;
+        double reSeed, imSeed;
+        int budget;
+
+        Thumbnail(int column, int row) {
+            xPixelStart = column * view.width / columns;
+            xPixelEnd = (column + 1) * view.width / columns;
+            yPixelStart = row * view.height / rows;
+            yPixelEnd = (row + 1) * view.height / rows;
+
+            reSeed = view.getRealComponent((column + 0.5) * view.width / columns);
+            imSeed = view.getImaginaryComponent((row + 0.5) * view.height / rows);
+        }
+
+        /**
+         * Iterate and color the thumbnail, leaving its right and bottom edges dark as a grid line
+         *
+         * @return the number of iterations taken
+         */
+        long render(int[] pixels) {
+            EscapeTime escapeTime = new EscapeTime(view.formula);
+            int width = xPixelEnd - xPixelStart - 1;
+            int height = yPixelEnd - yPixelStart - 1;
+            double zoom = Math.min(width, height) / (2 * JULIA_RADIUS);
+            long total = 0;
+
+            for (int y = 0; y < height; y++) {
+                double im = (height / 2.0 - y) / zoom;
+
+                for (int x = 0; x < width; x++) {
+                    double re = (x - width / 2.0) / zoom;
+                    int iteration = escapeTime.iterate(re, im, reSeed, imSeed, budget);
+                    total += iteration;
+
+                    // Points that outlast a cut down budget are colored as if they never escaped
+                    if (iteration == budget) iteration = brush.maxIterations;
+                    pixels[(yPixelStart + y) * view.width + xPixelStart + x] =
+                            brush.getColor(iteration, escapeTime.escapeMagnitude, colorOffset);
+                }
+            }
+
+            return total;
+        }
+    }
+}
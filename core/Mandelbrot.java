@@ -1,6 +1,7 @@
 package mandelbrot.core;
 
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.beans.binding.Bindings;
 import javafx.embed.swing.SwingFXUtils;
 import javafx.geometry.Pos;
@@ -15,10 +16,12 @@ import javafx.scene.layout.BorderPane;
 import javafx.scene.layout.VBox;
 import javafx.scene.paint.Color;
 import javafx.scene.shape.Rectangle;
+import javafx.stage.DirectoryChooser;
 import javafx.stage.FileChooser;
 import javafx.stage.Screen;
 import javafx.stage.Stage;
 import mandelbrot.brushes.*;
+import mandelbrot.formulas.*;
 
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
@@ -35,8 +38,18 @@ import java.io.IOException;
 public class Mandelbrot extends Application {
 
     // Constants
-    final String[] BRUSH_LIST = {"Smooth", "Elegant", "Banded", "Binary"};
+    final String[] BRUSH_LIST = {"Smooth", "Elegant", "Banded", "Binary", "Histogram", "Boundary"};
     final String DEFAULT_BRUSH = "Smooth";
+    final String[] FORMULA_LIST = {"Mandelbrot", "Burning Ship", "Tricorn", "Multibrot 3", "Multibrot 4"};
+    final String DEFAULT_FORMULA = "Mandelbrot";
+    final String[] MODE_LIST = {"Escape Time", "Buddhabrot", "Anti-Buddhabrot"};
+    final String DEFAULT_MODE = "Escape Time";
+    final Integer[] ANTIALIAS_SAMPLES = {0, 4, 16, 64};
+    final Double[] ANTIALIAS_THRESHOLDS = {0.25, 0.5, 1.0, 2.0, 4.0};
+    final double DEFAULT_ANTIALIAS_THRESHOLD = 1.0;
+    final int ATLAS_COLUMNS = 12;
+    final File SESSION_FILE = new File(System.getProperty("user.home"), ".mandelbrot-session");
+    final int SAVED_FRAMES = 8;
     final String INSTRUCTIONS = "WASD to move\ndrag mouse to zoom\nescape to cancel zoom\n+/- also zooms\nbackspace to go back";
 
 
@@ -92,7 +105,9 @@ public class Mandelbrot extends Application {
         stage.show();
 
         // Create new fractal
-        fractal = new Fractal(SCREEN_WIDTH * 7 / 8, SCREEN_HEIGHT);
+        fractal = new Fractal(SCREEN_WIDTH * 7 / 8, SCREEN_HEIGHT, SESSION_FILE);
+        fractal.setPrefetching(true);
+        fractal.setOffHeapHistory(true);
         imageView.imageProperty().bind(fractal.imageProperty);
 
         // Create julia preview
@@ -102,6 +117,9 @@ public class Mandelbrot extends Application {
         juliaPreview.isJulia = true;
         juliaPreview.zoom = 80;
         juliaPreview.setMaxIterations(100);
+        juliaPreview.brush = createBrush(getBrushName(fractal.brush), juliaPreview.maxIterations);
+        juliaPreview.formula = fractal.formula;
+        juliaPreview.colorOffset = fractal.colorOffset;
         juliaView.imageProperty().bind(juliaPreview.imageProperty);
 
         // Create toolbar
@@ -118,9 +136,27 @@ public class Mandelbrot extends Application {
         Label brushLabel = new Label("Brush");
         ComboBox<String> brushPicker = new ComboBox<>();
         brushPicker.getItems().addAll(BRUSH_LIST);
-        brushPicker.setValue(DEFAULT_BRUSH);
+        brushPicker.setValue(getBrushName(fractal.brush));
         brushPane.getChildren().addAll(brushLabel, brushPicker);
 
+        // Create formula picker
+        VBox formulaPane = new VBox();
+        formulaPane.setAlignment(Pos.CENTER);
+        Label formulaLabel = new Label("Formula");
+        ComboBox<String> formulaPicker = new ComboBox<>();
+        formulaPicker.getItems().addAll(FORMULA_LIST);
+        formulaPicker.setValue(getFormulaName(fractal.formula));
+        formulaPane.getChildren().addAll(formulaLabel, formulaPicker);
+
+        // Create render mode picker
+        VBox modePane = new VBox();
+        modePane.setAlignment(Pos.CENTER);
+        Label modeLabel = new Label("Mode");
+        ComboBox<String> modePicker = new ComboBox<>();
+        modePicker.getItems().addAll(MODE_LIST);
+        modePicker.setValue(!fractal.isOrbitDensity ? DEFAULT_MODE : fractal.isAntiBuddhabrot ? "Anti-Buddhabrot" : "Buddhabrot");
+        modePane.getChildren().addAll(modeLabel, modePicker);
+
         // Create iteration slider
         VBox iterationPane = new VBox();
         iterationPane.setAlignment(Pos.CENTER);
@@ -133,10 +169,15 @@ public class Mandelbrot extends Application {
         iterationSlider.setShowTickMarks(true);
         iterationSlider.setShowTickLabels(true);
         iterationSlider.setMaxWidth(SCREEN_WIDTH / 9);
-        iterationSlider.setValue(1000);
+        iterationSlider.setValue(fractal.maxIterations);
+        CheckBox autoIterations = new CheckBox("Auto");
+        autoIterations.setSelected(fractal.isAutoIterations);
+        iterationSlider.disableProperty().bind(autoIterations.selectedProperty());
         Label iterationLabel = new Label();
-        iterationLabel.textProperty().bind(Bindings.format("Max Iterations: %.0f", iterationSlider.valueProperty()));
-        iterationPane.getChildren().addAll(iterationLabel, iterationSlider);
+        iterationLabel.textProperty().bind(Bindings.when(autoIterations.selectedProperty())
+                .then(Bindings.format("Max Iterations: auto (%d)", fractal.iterationsProperty))
+                .otherwise(Bindings.format("Max Iterations: %.0f", iterationSlider.valueProperty())));
+        iterationPane.getChildren().addAll(iterationLabel, iterationSlider, autoIterations);
 
         // Create iteration slider
         VBox colorPane = new VBox();
@@ -146,7 +187,7 @@ public class Mandelbrot extends Application {
         colorSlider.setMin(0);
         colorSlider.setMax(1);
         colorSlider.setMaxWidth(SCREEN_WIDTH / 9);
-        colorSlider.setValue(0);
+        colorSlider.setValue(fractal.colorOffset);
         Label colorLabel = new Label("Color");
         colorPane.getChildren().addAll(colorLabel, colorSlider);
 
@@ -156,6 +197,27 @@ public class Mandelbrot extends Application {
         saveButton.setGraphic(new ImageView(saveIcon));
         FileChooser fileChooser = new FileChooser();
 
+        // Create anti-aliasing picker for saved images
+        VBox antialiasPane = new VBox();
+        antialiasPane.setAlignment(Pos.CENTER);
+        Label antialiasLabel = new Label("Anti-aliasing samples");
+        ComboBox<Integer> antialiasPicker = new ComboBox<>();
+        antialiasPicker.getItems().addAll(ANTIALIAS_SAMPLES);
+        antialiasPicker.setValue(0);
+
+        // Lower thresholds refine more of the image, which looks better and takes longer
+        Label thresholdLabel = new Label("Edge threshold");
+        ComboBox<Double> thresholdPicker = new ComboBox<>();
+        thresholdPicker.getItems().addAll(ANTIALIAS_THRESHOLDS);
+        thresholdPicker.setValue(DEFAULT_ANTIALIAS_THRESHOLD);
+        thresholdPicker.disableProperty().bind(antialiasPicker.valueProperty().isEqualTo(0));
+        antialiasPane.getChildren().addAll(antialiasLabel, antialiasPicker, thresholdLabel, thresholdPicker);
+
+        // Create zoom animation button
+        Button animationButton = new Button("Save Zoom Animation");
+        DirectoryChooser directoryChooser = new DirectoryChooser();
+        directoryChooser.setTitle("Choose a folder for the frames");
+
         // Create info panel
         VBox infoPane = new VBox();
         infoPane.setAlignment(Pos.CENTER);
@@ -165,12 +227,25 @@ public class Mandelbrot extends Application {
         Label zoomReadout = new Label();
         zoomReadout.textProperty().bind(Bindings.format("Zoom: %.2G", fractal.zoomProperty));
         Label coordReadout = new Label();
-        Label seedReadout = new Label();
-        seedReadout.setVisible(false);
-        infoPane.getChildren().addAll(renderReadout, zoomReadout, coordReadout, seedReadout);
+        Label seedReadout = new Label(fractal.getSeedString());
+        seedReadout.setVisible(fractal.isJulia);
+        Label reportReadout = new Label();
+        reportReadout.setWrapText(true);
+        infoPane.getChildren().addAll(renderReadout, zoomReadout, coordReadout, seedReadout, reportReadout);
+
+        // Create render metrics overlay
+        CheckBox metricsToggle = new CheckBox("Show render metrics");
+        Label metricsReadout = new Label();
+        metricsReadout.textProperty().bind(fractal.metricsProperty);
+        metricsReadout.visibleProperty().bind(metricsToggle.selectedProperty());
+        metricsReadout.managedProperty().bind(metricsToggle.selectedProperty());
+        infoPane.getChildren().addAll(metricsToggle, metricsReadout);
 
         // Create Julia button
-        Button juliaButton = new Button("Generate Julia Set");
+        Button juliaButton = new Button(fractal.isJulia ? "Back to Mandelbrot" : "Generate Julia Set");
+
+        // Create Julia atlas button
+        Button atlasButton = new Button("Julia Atlas");
 
         // Setup zoom rectangle
         zoomRect = new Rectangle();
@@ -181,12 +256,17 @@ public class Mandelbrot extends Application {
         fractalPane.getChildren().add(zoomRect);
 
         // Add all items to toolbar
-        toolbar.getChildren().addAll(instructions, infoPane, juliaButton, brushPane, colorPane, iterationPane, saveButton);
+        toolbar.getChildren().addAll(instructions, infoPane, juliaButton, atlasButton, brushPane, formulaPane, modePane, colorPane, iterationPane, antialiasPane, saveButton, animationButton);
 
         // Create event handlers
         scene.setOnKeyPressed(event -> handleKeyPress(event.getCode()));
         brushPicker.valueProperty().addListener((observable, oldValue, newValue) -> updateBrush(newValue));
-        iterationSlider.setOnMouseReleased(event -> fractal.setMaxIterations((int)iterationSlider.getValue()));
+        formulaPicker.valueProperty().addListener((observable, oldValue, newValue) -> updateFormula(newValue));
+        modePicker.valueProperty().addListener((observable, oldValue, newValue) ->
+                fractal.setOrbitDensity(!newValue.equals("Escape Time"), newValue.equals("Anti-Buddhabrot")));
+        iterationSlider.setOnMouseReleased(event -> fractal.setMaxIterations(Math.max(1, (int)iterationSlider.getValue())));
+        autoIterations.selectedProperty().addListener((observable, oldValue, newValue) ->
+                fractal.setMaxIterations(newValue ? Fractal.AUTO_ITERATIONS : Math.max(1, (int)iterationSlider.getValue())));
         colorSlider.setOnMouseReleased(event -> fractal.setColorOffset((float)colorSlider.getValue()));
         fractalPane.setOnMousePressed(event -> createNewZoomRect(event.getX(), event.getY()));
         fractalPane.setOnMouseDragged(event -> resizeZoomRect(fractalPane, event.getX(), event.getY()));
@@ -199,15 +279,57 @@ public class Mandelbrot extends Application {
 
         imageView.setOnMouseMoved(event -> {
             coordReadout.setText(getMouseCoordinateString(event.getX(), event.getY()));
-            if (pickingJuliaPoint) juliaPreview.setJuliaSeed(fractal.getRealComponent(event.getX()), fractal.getImaginaryComponent(event.getY()));
+            if (pickingJuliaPoint) juliaPreview.previewJuliaSeed(fractal.getRealComponent(event.getX()), fractal.getImaginaryComponent(event.getY()));
         });
 
         saveButton.setOnAction(event -> {
             File file = fileChooser.showSaveDialog(stage);
-            if (file != null) saveToFile(imageView.getImage(), file);
+            if (file == null) return;
+
+            if (antialiasPicker.getValue() > 0 && fractal.frame != null) {
+                saveAntialiased(file, antialiasPicker.getValue(), thresholdPicker.getValue(), reportReadout);
+            } else {
+                saveToFile(imageView.getImage(), file);
+            }
+        });
+
+        animationButton.setOnAction(event -> {
+            File directory = directoryChooser.showDialog(stage);
+            if (directory != null) saveZoomAnimation(directory, animationButton, reportReadout);
+        });
+
+        atlasButton.setOnAction(event -> {
+            if (fractal.isShowingAtlas) {
+                fractal.hideJuliaAtlas();
+                atlasButton.setText("Julia Atlas");
+                imageView.setOnMouseClicked(nextClick -> {});
+                return;
+            }
+
+            if (pickingJuliaPoint) return;
+
+            int rows = Math.max(1, (int) Math.round(ATLAS_COLUMNS * fractal.height / fractal.width));
+            JuliaAtlas atlas = fractal.showJuliaAtlas(ATLAS_COLUMNS, rows, reportReadout::setText);
+            if (atlas == null) return;
+
+            atlasButton.setText("Back to Mandelbrot");
+            imageView.setOnMouseClicked(click -> {
+                if (fractal.rendering) return;
+
+                double[] center = atlas.getCellCenter(click.getX(), click.getY());
+                fractal.hideJuliaAtlas();
+                atlasButton.setText("Julia Atlas");
+                imageView.setOnMouseClicked(nextClick -> {});
+
+                juliaButton.setText("Back to Mandelbrot");
+                seedReadout.setText(fractal.enableJulia(center[0], center[1]));
+                seedReadout.setVisible(true);
+            });
         });
 
         juliaButton.setOnAction(event -> {
+            if (fractal.isShowingAtlas) return;
+
             if (fractal.isJulia) {
                 juliaButton.setText("Generate Julia Set");
                 fractal.disableJulia();
@@ -236,6 +358,20 @@ public class Mandelbrot extends Application {
         });
     }
 
+    /**
+     * Saves the session when the application closes, so the next launch picks up where this one left off
+     */
+    @Override
+    public void stop() {
+        if (fractal == null) return;
+
+        try {
+            fractal.saveSession(SESSION_FILE, SAVED_FRAMES);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     /**
      * Turns an x, y coordinate on the imageview into a coordinate string that shows the complex point at those coordinates
      * @param x
@@ -264,12 +400,81 @@ public class Mandelbrot extends Application {
         }
     }
 
+    /**
+     * Saves the current frame to a file after anti-aliasing its edges in the background
+     * @param file the file to save to
+     * @param samples extra samples to take in each pixel on an edge
+     * @param threshold how far apart, in smooth iterations, neighboring pixels must be to count as an edge
+     * @param reportReadout shows how much of the image was refined
+     */
+    private void saveAntialiased(File file, int samples, double threshold, Label reportReadout) {
+        Frame frame = fractal.frame.copy();
+        Antialiaser antialiaser = new Antialiaser(fractal.renderer, samples, threshold);
+        reportReadout.setText("Anti-aliasing...");
+
+        new Thread(() -> {
+            String report;
+            try {
+                antialiaser.refine(frame);
+                ImageIO.write(frame.toImage(), "png", file);
+                report = antialiaser.getReport();
+            } catch (Exception e) {
+                e.printStackTrace();
+                report = "Save failed: " + e.getMessage();
+            }
+
+            String result = report;
+            Platform.runLater(() -> reportReadout.setText(result));
+        }).start();
+    }
+
+    /**
+     * Renders a zoom from the default view into the current one, as a PNG sequence in the background
+     * @param directory the directory to save the frames in
+     * @param animationButton disabled while the animation renders
+     * @param reportReadout shows the cost report when done
+     */
+    private void saveZoomAnimation(File directory, Button animationButton, Label reportReadout) {
+        double startZoom = 400;
+        double endZoom = fractal.zoom;
+
+        // Two seconds per doubling of zoom at 24 frames per second
+        int frames = Math.max(2, (int) Math.round(48 * Math.abs(Math.log(endZoom / startZoom) / Math.log(2))));
+
+        // The animation gets a brush of its own, as the fractal's changes with the iteration budget while it renders
+        Brush brush = createBrush(getBrushName(fractal.brush), fractal.maxIterations);
+        ZoomAnimation animation = new ZoomAnimation(fractal.reCenter, -fractal.imCenter, startZoom, endZoom, frames,
+                (int) fractal.width, (int) fractal.height, fractal.maxIterations, brush, fractal.colorOffset);
+        animation.setFormula(fractal.formula);
+        if (fractal.isJulia) animation.setJuliaSeed(fractal.juliaReSeed, fractal.juliaImSeed);
+
+        animationButton.setDisable(true);
+        reportReadout.setText("Rendering " + frames + " frames...");
+
+        new Thread(() -> {
+            String report;
+            try {
+                report = animation.render(directory);
+            } catch (Exception e) {
+                e.printStackTrace();
+                report = "Animation failed: " + e.getMessage();
+            }
+
+            String result = report;
+            Platform.runLater(() -> {
+                animationButton.setDisable(false);
+                reportReadout.setText(result);
+            });
+        }).start();
+    }
+
 
     /**
      * Handles keyboard input to and adjusts the model and view accordingly
      * @param key the key that was pressed
      */
     private void handleKeyPress(KeyCode key) {
+        if (fractal.isShowingAtlas) return;
 
         switch (key) {
             case A:
@@ -307,26 +512,88 @@ public class Mandelbrot extends Application {
      * @param brushName the name of the new brush
      */
     private void updateBrush(String brushName) {
+        fractal.setBrush(createBrush(brushName, fractal.maxIterations));
+        juliaPreview.setBrush(createBrush(brushName, fractal.maxIterations));
+    }
+
+    /**
+     * Creates a brush by its name in the brush picker
+     * @param brushName the name of the brush
+     * @param maxIterations the iteration budget of the brush
+     * @return the brush, smooth if the name is unknown
+     */
+    private Brush createBrush(String brushName, int maxIterations) {
         switch (brushName) {
             case "Binary":
-                fractal.setBrush(new BinaryBrush(fractal.maxIterations));
-                juliaPreview.setBrush(new BinaryBrush(fractal.maxIterations));
-                break;
+                return new BinaryBrush(maxIterations);
             case "Elegant":
-                fractal.setBrush(new ElegantBrush(fractal.maxIterations));
-                juliaPreview.setBrush(new ElegantBrush(fractal.maxIterations));
-                break;
+                return new ElegantBrush(maxIterations);
             case "Banded":
-                fractal.setBrush(new BandedBrush(fractal.maxIterations));
-                juliaPreview.setBrush(new BandedBrush(fractal.maxIterations));
+                return new BandedBrush(maxIterations);
+            case "Histogram":
+                return new HistogramBrush(maxIterations);
+            case "Boundary":
+                return new BoundaryBrush(maxIterations);
+            default:
+                return new SmoothBrush(maxIterations);
+        }
+    }
+
+    /**
+     * Finds the name of a brush in the brush picker, for when the fractal starts with a brush from a saved session
+     * @param brush
+     * @return the name of the brush
+     */
+    private String getBrushName(Brush brush) {
+        if (brush instanceof BinaryBrush) return "Binary";
+        if (brush instanceof ElegantBrush) return "Elegant";
+        if (brush instanceof BandedBrush) return "Banded";
+        if (brush instanceof HistogramBrush) return "Histogram";
+        if (brush instanceof BoundaryBrush) return "Boundary";
+        return DEFAULT_BRUSH;
+    }
+
+    /**
+     * Finds the name of a formula in the formula picker, for when the fractal starts with a formula from a saved session
+     * @param formula
+     * @return the name of the formula
+     */
+    private String getFormulaName(Formula formula) {
+        if (formula instanceof BurningShipFormula) return "Burning Ship";
+        if (formula instanceof TricornFormula) return "Tricorn";
+        if (formula instanceof MultibrotFormula) return "Multibrot " + ((MultibrotFormula) formula).getPower();
+        return DEFAULT_FORMULA;
+    }
+
+    /**
+     * Sets a new formula to iterate the fractal with
+     * @param formulaName the name of the new formula
+     */
+    private void updateFormula(String formulaName) {
+        Formula formula;
+
+        switch (formulaName) {
+            case "Mandelbrot":
+                formula = new MandelbrotFormula();
                 break;
-            case "Smooth":
-                fractal.setBrush(new SmoothBrush(fractal.maxIterations));
-                juliaPreview.setBrush(new SmoothBrush(fractal.maxIterations));
+            case "Burning Ship":
+                formula = new BurningShipFormula();
+                break;
+            case "Tricorn":
+                formula = new TricornFormula();
+                break;
+            case "Multibrot 3":
+                formula = new MultibrotFormula(3);
+                break;
+            case "Multibrot 4":
+                formula = new MultibrotFormula(4);
                 break;
             default:
                 return;
         }
+
+        fractal.setFormula(formula);
+        juliaPreview.setFormula(formula);
     }
 
     /**
@@ -335,7 +602,7 @@ public class Mandelbrot extends Application {
      * @param clickY
      */
     private void createNewZoomRect(double clickX, double clickY) {
-        if (!pickingJuliaPoint) {
+        if (!pickingJuliaPoint && !fractal.isShowingAtlas) {
             zoomRect.setX(clickX);
             zoomRect.setY(clickY);
             zoomRectStartX = clickX;
@@ -0,0 +1,163 @@
+package mandelbrot.core;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+
+/**
+ * The iteration data of a frame parked outside the Java heap, for frames that are kept around without being looked
+ * at, like those of history states. A screen sized frame is tens of megabytes of arrays, and a long history of them
+ * on the heap gives the collector gigabytes to trace and copy, which shows up as pauses on the application thread.
+ *
+ * The frame on screen stays on the heap, since its arrays are what the renderer and brushes work on; only frames that
+ * are put away move here, and come back to the heap as a new frame when they are shown again.
+ *
+ * Only what the escape loop produced is kept: iteration counts, escape magnitudes and distances if the frame has them.
+ * Colors are not, since a frame is painted again when it comes back. The data is split into bands of whole rows, one
+ * buffer of at most a gigabyte each, so a frame is never too large to store; the int indexed arrays of Frame are the
+ * only limit on its size. The memory is held until release is called, which puts the buffers in a small pool for the
+ * next frame of the same size. Buffers that don't fit in the pool are left to the collector, which frees their memory
+ * once it notices them, since the JDK has no public way to free a direct buffer on the spot.
+ */
+public class OffHeapFrame {
+
+    private static final int POOL_SIZE = 4;
+
+    // Each buffer holds as many whole rows as fit in this many bytes, and at least one
+    private static final long MAX_BAND_BYTES = 1L << 30;
+
+    private static final Deque<ByteBuffer> pool = new ArrayDeque<>();
+    private static long liveBytes;
+
+    final int width, height;
+    final View view;
+    final boolean hasDistances;
+    final int bandRows;
+    ByteBuffer[] bands;
+
+
+    private OffHeapFrame(Frame frame, int bandRows, ByteBuffer[] bands) {
+        width = frame.width;
+        height = frame.height;
+        view = frame.view;
+        hasDistances = frame.distances != null;
+        this.bandRows = bandRows;
+        this.bands = bands;
+    }
+
+    /**
+     * Copy the iteration data of a frame off the heap. The frame itself is left as it is.
+     *
+     * @param frame the frame to store
+     * @return the stored copy
+     */
+    public static OffHeapFrame store(Frame frame) {
+        int bytesPerPixel = frame.distances != null ? 20 : 12;
+        int bandRows = (int) Math.max(1, Math.min(frame.height, MAX_BAND_BYTES / ((long) frame.width * bytesPerPixel)));
+        ByteBuffer[] bands = new ByteBuffer[(frame.height + bandRows - 1) / bandRows];
+
+        try {
+            for (int band = 0; band < bands.length; band++) {
+                int offset = band * bandRows * frame.width;
+                int pixels = Math.min(bandRows, frame.height - band * bandRows) * frame.width;
+                ByteBuffer data = acquire((long) pixels * bytesPerPixel);
+
+                data.asIntBuffer().put(frame.iterations, offset, pixels);
+                data.position(4 * pixels);
+                data.asDoubleBuffer().put(frame.escapeMagnitudes, offset, pixels);
+                if (frame.distances != null) {
+                    data.position(12 * pixels);
+                    data.asDoubleBuffer().put(frame.distances, offset, pixels);
+                }
+                data.clear();
+                bands[band] = data;
+            }
+        } catch (RuntimeException | OutOfMemoryError e) {
+            // Hand back the bands already taken, so a frame that could not be stored holds no memory
+            for (ByteBuffer data : bands) {
+                if (data != null) recycle(data);
+            }
+            throw e;
+        }
+
+        return new OffHeapFrame(frame, bandRows, bands);
+    }
+
+    /**
+     * Copy the iteration data back into a new frame on the heap, which still has to be colored
+     *
+     * @return the frame
+     */
+    public synchronized Frame load() {
+        if (bands == null) throw new IllegalStateException("Frame has been released");
+
+        Frame frame = new Frame(width, height);
+        frame.view = view;
+        if (hasDistances) frame.distances = new double[width * height];
+
+        for (int band = 0; band < bands.length; band++) {
+            int offset = band * bandRows * width;
+            int pixels = Math.min(bandRows, height - band * bandRows) * width;
+
+            ByteBuffer block = bands[band].duplicate().order(ByteOrder.nativeOrder());
+            block.asIntBuffer().get(frame.iterations, offset, pixels);
+            block.position(4 * pixels);
+            block.asDoubleBuffer().get(frame.escapeMagnitudes, offset, pixels);
+            if (hasDistances) {
+                block.position(12 * pixels);
+                block.asDoubleBuffer().get(frame.distances, offset, pixels);
+            }
+        }
+
+        return frame;
+    }
+
+    /**
+     * Give the memory back. The frame can't be loaded afterwards. Releasing twice does nothing.
+     */
+    public synchronized void release() {
+        if (bands == null) return;
+
+        for (ByteBuffer data : bands) {
+            recycle(data);
+        }
+        bands = null;
+    }
+
+    /**
+     * @return the number of bytes held by frames that have not been released
+     */
+    public static synchronized long getLiveBytes() {
+        return liveBytes;
+    }
+
+    private static synchronized ByteBuffer acquire(long bytes) {
+        if (bytes > Integer.MAX_VALUE) throw new IllegalArgumentException("Frame row too large for one buffer");
+
+        ByteBuffer data = null;
+        for (Iterator<ByteBuffer> buffers = pool.iterator(); buffers.hasNext(); ) {
+            ByteBuffer buffer = buffers.next();
+            if (buffer.capacity() == bytes) {
+                buffers.remove();
+                data = buffer;
+                break;
+            }
+        }
+
+        if (data == null) data = ByteBuffer.allocateDirect((int) bytes);
+
+        liveBytes += bytes;
+        data.clear();
+        return data.order(ByteOrder.nativeOrder());
+    }
+
+    private static synchronized void recycle(ByteBuffer data) {
+        liveBytes -= data.capacity();
+
+        // Keep the most recently released buffers, which are the likeliest size for the next frame
+        if (pool.size() == POOL_SIZE) pool.removeLast();
+        pool.addFirst(data);
+    }
+}
@@ -0,0 +1,313 @@
+package mandelbrot.core;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Renders orbit densities (the Buddhabrot, and the anti-Buddhabrot) of a view.
+ *
+ * Random points are iterated under the view's formula and every point their orbits visit is counted in a density
+ * grid the size of the view. The Buddhabrot counts the orbits of points that escape, the anti-Buddhabrot those that
+ * don't.
+ *
+ * Every worker thread counts into its own grid, and the grids are summed band by band once a round is over, so the
+ * heavy write traffic never contends. Points are not drawn uniformly: a coarse pre-pass finds the cells of the
+ * sampling area that touch the boundary of the set, where the long orbits come from, and most samples are drawn
+ * from there. Each orbit is weighted by how much more likely its cell was to be drawn, so the density stays the same
+ * as it would be with uniform sampling, it just converges faster.
+ */
+public class OrbitDensity {
+
+    // Sampling area: the disc of radius 2 every orbit that matters starts in, split into cells for the pre-pass
+    private static final double SAMPLE_RADIUS = 2;
+    private static final int CELLS = 256;
+    private static final int PROBES = 3;
+    private static final double BACKGROUND_WEIGHT = 0.05;
+    private static final double WHITE_PERCENTILE = 0.995;
+
+    Renderer renderer;
+    View view;
+    boolean anti;
+    float colorOffset;
+
+    double[] cellCdf;
+    double[] cellWeights;
+
+    long samplesTaken;
+    long orbitPoints;
+    long elapsedNanos;
+
+
+    /**
+     * Constructor
+     *
+     * @param renderer      the renderer whose threads do the work
+     * @param view          the view to render
+     * @param anti          true to count the orbits of points that never escape instead
+     * @param colorOffset   the hue to tint the density with
+     */
+    public OrbitDensity(Renderer renderer, View view, boolean anti, float colorOffset) {
+        this.renderer = renderer;
+        this.view = view;
+        this.anti = anti;
+        this.colorOffset = colorOffset;
+    }
+
+    /**
+     * Render the density progressively. After every round the image so far is handed to the progress consumer.
+     *
+     * @param samples   the total number of points to draw
+     * @param rounds    how many times to report progress
+     * @param progress  receives the pixels after each round, may be null
+     * @return the final pixels
+     */
+    public int[] render(long samples, int rounds, Consumer<int[]> progress) throws InterruptedException, ExecutionException {
+        long startTime = System.nanoTime();
+        samplesTaken = 0;
+        orbitPoints = 0;
+
+        buildImportanceMap();
+
+        int threads = renderer.threads;
+        int size = view.width * view.height;
+        float[][] grids = new float[threads][size];
+        double[] density = new double[size];
+        int[] pixels = new int[size];
+
+        for (int round = 0; round < rounds; round++) {
+            long roundSamples = samples / rounds + (round < samples % rounds ? 1 : 0);
+
+            // Each thread counts into its own grid
+            Collection<Callable<Long>> tasks = new ArrayList<>();
+            for (int thread = 0; thread < threads; thread++) {
+                float[] grid = grids[thread];
+                long taskSamples = roundSamples / threads + (thread < roundSamples % threads ? 1 : 0);
+                SplittableRandom random = new SplittableRandom(((long) round << 32) + thread);
+                tasks.add(() -> sample(grid, taskSamples, random));
+            }
+
+            for (Future<Long> future : renderer.executor.invokeAll(tasks)) {
+                orbitPoints += future.get();
+            }
+            samplesTaken += roundSamples;
+
+            merge(grids, density);
+            toPixels(density, pixels);
+            elapsedNanos = System.nanoTime() - startTime;
+
+            if (progress != null) progress.accept(pixels.clone());
+        }
+
+        return pixels;
+    }
+
+    public double getSamplesPerSecond() {
+        return elapsedNanos == 0 ? 0 : samplesTaken / (elapsedNanos / 1e9);
+    }
+
+    /**
+     * @return a summary of the render so far
+     */
+    public String getReport() {
+        return String.format("%,d samples, %,d orbit points, %.2fM samples/s", samplesTaken, orbitPoints,
+                getSamplesPerSecond() / 1e6);
+    }
+
+    /**
+     * Probe a few points in every cell of the sampling area and weight the cell by how interesting its orbits are.
+     * Cells that straddle the boundary, or whose points take long to escape, get full weight, everything else a
+     * little, so no cell is ever left out entirely.
+     */
+    private void buildImportanceMap() throws InterruptedException, ExecutionException {
+        cellWeights = new double[CELLS * CELLS];
+        double cellSize = 2 * SAMPLE_RADIUS / CELLS;
+
+        Collection<Callable<Void>> tasks = new ArrayList<>();
+        int bandHeight = Math.max(1, CELLS / renderer.threads);
+
+        for (int start = 0; start < CELLS; start += bandHeight) {
+            int rowStart = start;
+            int rowEnd = Math.min(CELLS, start + bandHeight);
+
+            tasks.add(() -> {
+                EscapeTime escapeTime = new EscapeTime(view.formula);
+
+                for (int row = rowStart; row < rowEnd; row++) {
+                    for (int column = 0; column < CELLS; column++) {
+                        int escaped = 0;
+                        int slowest = 0;
+
+                        for (int probe = 0; probe < PROBES * PROBES; probe++) {
+                            double re = -SAMPLE_RADIUS + (column + (probe % PROBES + 0.5) / PROBES) * cellSize;
+                            double im = -SAMPLE_RADIUS + (row + (probe / PROBES + 0.5) / PROBES) * cellSize;
+                            int iteration = iterate(escapeTime, re, im);
+
+                            if (iteration < view.maxIterations) {
+                                escaped++;
+                                slowest = Math.max(slowest, iteration);
+                            }
+                        }
+
+                        boolean boundary = escaped > 0 && escaped < PROBES * PROBES;
+                        boolean slow = slowest > view.maxIterations / 10;
+                        boolean wanted = anti ? escaped < PROBES * PROBES : escaped > 0;
+
+                        cellWeights[row * CELLS + column] = wanted && (boundary || slow) ? 1 : BACKGROUND_WEIGHT;
+                    }
+                }
+
+                return null;
+            });
+        }
+
+        for (Future<Void> future : renderer.executor.invokeAll(tasks)) {
+            future.get();
+        }
+
+        // Turn the weights into a distribution to draw cells from, and into the factor each orbit gets weighted by
+        cellCdf = new double[CELLS * CELLS];
+        double total = 0;
+        for (int i = 0; i < cellWeights.length; i++) {
+            total += cellWeights[i];
+            cellCdf[i] = total;
+        }
+        for (int i = 0; i < cellWeights.length; i++) {
+            cellCdf[i] /= total;
+            cellWeights[i] = total / (cellWeights[i] * cellWeights.length);
+        }
+    }
+
+    /**
+     * Draw points and count their orbits into a grid
+     *
+     * @return the number of orbit points counted
+     */
+    private long sample(float[] grid, long samples, SplittableRandom random) {
+        Formula formula = view.formula;
+        int maxIterations = view.maxIterations;
+        double[] orbit = new double[2 * maxIterations];
+        double cellSize = 2 * SAMPLE_RADIUS / CELLS;
+
+        double left = view.getRealComponent(0);
+        double top = view.getImaginaryComponent(0);
+        double zoom = view.zoom;
+        int width = view.width;
+        int height = view.height;
+
+        long counted = 0;
+
+        for (long sample = 0; sample < samples; sample++) {
+            int cell = drawCell(random.nextDouble());
+            double re = -SAMPLE_RADIUS + (cell % CELLS + random.nextDouble()) * cellSize;
+            double im = -SAMPLE_RADIUS + (cell / CELLS + random.nextDouble()) * cellSize;
+            if (re * re + im * im > SAMPLE_RADIUS * SAMPLE_RADIUS) continue;
+
+            // Mandelbrot views start every orbit at 0 and vary c, Julia views fix c and vary the start
+            double zRe = view.isJulia ? re : 0;
+            double zIm = view.isJulia ? im : 0;
+            double cRe = view.isJulia ? view.juliaReSeed : re;
+            double cIm = view.isJulia ? view.juliaImSeed : im;
+
+            int length = formula.orbit(zRe, zIm, cRe, cIm, maxIterations, orbit);
+
+            // Only an escape stops the orbit early, but a point can also escape on the last iteration of its budget
+            boolean escaped = length < maxIterations
+                    || orbit[2 * length - 2] * orbit[2 * length - 2] + orbit[2 * length - 1] * orbit[2 * length - 1] >= 4;
+            if (escaped == anti) continue;
+
+            float weight = (float) cellWeights[cell];
+            for (int i = 0; i < length; i++) {
+                int xPixel = (int) ((orbit[2 * i] - left) * zoom);
+                int yPixel = (int) ((top - orbit[2 * i + 1]) * zoom);
+
+                if (xPixel >= 0 && xPixel < width && yPixel >= 0 && yPixel < height) {
+                    grid[yPixel * width + xPixel] += weight;
+                    counted++;
+                }
+            }
+        }
+
+        return counted;
+    }
+
+    private int iterate(EscapeTime escapeTime, double re, double im) {
+        if (view.isJulia) {
+            return escapeTime.iterate(re, im, view.juliaReSeed, view.juliaImSeed, view.maxIterations);
+        }
+
+        return escapeTime.iterate(0, 0, re, im, view.maxIterations);
+    }
+
+    /**
+     * Binary search the cell distribution
+     */
+    private int drawCell(double u) {
+        int low = 0;
+        int high = cellCdf.length - 1;
+
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (cellCdf[middle] < u) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+
+    /**
+     * Add every thread's grid into the total and clear it for the next round, one band of pixels per thread
+     */
+    private void merge(float[][] grids, double[] density) throws InterruptedException, ExecutionException {
+        Collection<Callable<Void>> tasks = new ArrayList<>();
+        int bandSize = Math.max(1, density.length / renderer.threads);
+
+        for (int start = 0; start < density.length; start += bandSize) {
+            int bandStart = start;
+            int bandEnd = Math.min(density.length, start + bandSize);
+
+            tasks.add(() -> {
+                for (float[] grid : grids) {
+                    for (int i = bandStart; i < bandEnd; i++) {
+                        density[i] += grid[i];
+                        grid[i] = 0;
+                    }
+                }
+                return null;
+            });
+        }
+
+        for (Future<Void> future : renderer.executor.invokeAll(tasks)) {
+            future.get();
+        }
+    }
+
+    /**
+     * Tone map the density, with a square root so faint orbits still show next to the bright ones.
+     * A few heavily weighted orbits would make the very brightest pixel useless as white, so a high percentile of
+     * a spread of pixels is used instead.
+     */
+    private void toPixels(double[] density, int[] pixels) {
+        int stride = Math.max(1, density.length / 65536);
+        double[] spread = new double[(density.length + stride - 1) / stride];
+        for (int i = 0; i < spread.length; i++) {
+            spread[i] = density[i * stride];
+        }
+        Arrays.sort(spread);
+        double max = spread[(int) (WHITE_PERCENTILE * (spread.length - 1))];
+
+        for (int i = 0; i < density.length; i++) {
+            float brightness = max == 0 ? 0 : (float) Math.min(1, Math.sqrt(density[i] / max));
+            pixels[i] = Color.HSBtoRGB(colorOffset, 0.3f, brightness);
+        }
+    }
+}
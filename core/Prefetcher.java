@@ -0,0 +1,310 @@
+package mandelbrot.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Renders the views the user is likely to go to next while the fractal sits idle, so that panning or zooming with
+ * the keys can show a frame that is already done.
+ *
+ * The candidates are the views one key press away from the current one: a fifth of the screen in each direction,
+ * and the fixed zoom in and out. They are rendered one at a time, most used move first, on a renderer of their own
+ * whose threads run at the lowest priority, and only the iteration data is kept, so a cached frame can be painted
+ * with whatever brush is current once it is taken. As soon as real work comes in, the speculative render in
+ * progress is cancelled. Frames that are cancelled, or dropped from the cache without ever being taken, count as
+ * wasted work. The cache only ever holds frames one move away from the view on screen, so at most one per move.
+ */
+public class Prefetcher {
+
+    // The moves a key press can make, as in Fractal
+    private static final int MOVES = 6;
+    private static final int RIGHT = 0, LEFT = 1, UP = 2, DOWN = 3, ZOOM_IN = 4, ZOOM_OUT = 5;
+
+    Renderer renderer;
+    IterationBudget iterationBudget;
+    Thread worker;
+
+    View base;
+    boolean autoIterations;
+    long epoch;
+    List<View> candidates;
+    Map<View, Speculation> cache;
+    int[] moveCounts;
+    View lastTaken;
+
+    long lookups;
+    long hits;
+    long cancelled;
+    long evicted;
+    double busyMillis;
+    double wastedMillis;
+
+
+    /**
+     * Constructor
+     *
+     * @param threads the number of threads to render with
+     */
+    public Prefetcher(int threads) {
+        renderer = new Renderer(threads, Thread.MIN_PRIORITY);
+        iterationBudget = new IterationBudget(renderer);
+        candidates = new ArrayList<>();
+        cache = new LinkedHashMap<>();
+        moveCounts = new int[MOVES];
+
+        worker = new Thread(this::run, "prefetch");
+        worker.setDaemon(true);
+        worker.setPriority(Thread.MIN_PRIORITY);
+        worker.start();
+    }
+
+    /**
+     * Start rendering the neighbours of a view in the background, dropping cached frames that are no longer one move
+     * away from it
+     *
+     * @param view              the view now on screen
+     * @param autoIterations    true to pick the budget of every neighbour as the fractal would
+     */
+    public synchronized void speculate(View view, boolean autoIterations) {
+        epoch++;
+        base = view;
+        this.autoIterations = autoIterations;
+
+        // Most used moves first
+        Integer[] order = {RIGHT, LEFT, UP, DOWN, ZOOM_IN, ZOOM_OUT};
+        Arrays.sort(order, (a, b) -> Integer.compare(moveCounts[b], moveCounts[a]));
+
+        candidates.clear();
+        for (int move : order) candidates.add(apply(move, view));
+
+        Iterator<Map.Entry<View, Speculation>> entries = cache.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<View, Speculation> entry = entries.next();
+            if (entry.getValue().autoIterations != autoIterations || findCandidate(entry.getKey()) < 0) {
+                wastedMillis += entry.getValue().busyMillis;
+                evicted++;
+                entries.remove();
+            }
+        }
+
+        notifyAll();
+    }
+
+    /**
+     * Stop speculating right away, because real work is about to start. Speculation picks up again at the next call
+     * to speculate.
+     */
+    public synchronized void cancel() {
+        epoch++;
+        base = null;
+        renderer.cancel();
+    }
+
+    /**
+     * Take the frame of a view out of the cache
+     *
+     * @param view the view about to be rendered
+     * @return its iteration data, not yet painted, or null if it was not rendered ahead
+     */
+    public synchronized Frame take(View view) {
+        lookups++;
+
+        // Learn which moves get used, to render those first next time
+        if (lastTaken != null) {
+            for (int move = 0; move < MOVES; move++) {
+                if (isSamePlace(apply(move, lastTaken), view)) moveCounts[move]++;
+            }
+        }
+        lastTaken = view;
+
+        Speculation speculation = cache.remove(view);
+        if (speculation == null) return null;
+
+        hits++;
+        return speculation.frame;
+    }
+
+    /**
+     * Stop the prefetch thread and its renderer
+     */
+    public void shutdown() {
+        worker.interrupt();
+        renderer.shutdown();
+    }
+
+    public synchronized double getHitRate() {
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    /**
+     * @return a summary of hits and of how much of the speculative work went to waste
+     */
+    public synchronized String getReport() {
+        return String.format("Prefetch: %.0f%% hits (%d of %d), %.0f of %.0f ms speculative CPU wasted (%d cancelled, %d unused)",
+                100 * getHitRate(), hits, lookups, wastedMillis, busyMillis, cancelled, evicted);
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                Job job = next();
+                long probeStart = System.nanoTime();
+                double probeMillis = 0;
+
+                try {
+                    View view = job.view;
+                    if (job.autoIterations) view.maxIterations = iterationBudget.choose(view);
+
+                    // The probe cannot be cancelled, so check before starting on the frame itself. Its time is counted
+                    // as if it kept every thread busy, which it does unless the pool is larger than the machine.
+                    probeMillis = (System.nanoTime() - probeStart) / 1e6 * renderer.threads;
+                    if (!isCurrent(job, probeMillis)) continue;
+
+                    Frame frame = new Frame(view.width, view.height);
+                    renderer.render(view, null, 0, frame, 0, view.width, 0, view.height, job.generation);
+                    double frameMillis = renderer.getMetrics().getBusyMillis();
+
+                    synchronized (this) {
+                        busyMillis += frameMillis;
+
+                        if (epoch == job.epoch && findCandidate(view) >= 0) {
+                            cache.put(view, new Speculation(frame, probeMillis + frameMillis, job.autoIterations));
+                        } else {
+                            wastedMillis += probeMillis + frameMillis;
+                        }
+                    }
+                } catch (CancellationException e) {
+                    synchronized (this) {
+                        cancelled++;
+                        double frameMillis = renderer.getMetrics().getBusyMillis();
+                        busyMillis += frameMillis;
+                        wastedMillis += probeMillis + frameMillis;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // Shut down
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Wait for a candidate that is neither cached nor already tried for the current view
+     */
+    private synchronized Job next() throws InterruptedException {
+        while (true) {
+            if (base != null) {
+                for (int i = 0; i < candidates.size(); i++) {
+                    View candidate = candidates.get(i);
+                    if (candidate != null && !isCached(candidate)) {
+                        // Each candidate is only tried once per view, even if it is cancelled
+                        candidates.set(i, null);
+                        return new Job(candidate, epoch, autoIterations);
+                    }
+                }
+            }
+
+            wait();
+        }
+    }
+
+    /**
+     * Count the probe of a job, and check whether the job is still wanted. If it is, the renderer's generation is
+     * read under the same lock as cancel, so a cancel that comes in before the render starts still stops it.
+     */
+    private synchronized boolean isCurrent(Job job, double probeMillis) {
+        busyMillis += probeMillis;
+        if (epoch == job.epoch) {
+            job.generation = renderer.generation.get();
+            return true;
+        }
+
+        wastedMillis += probeMillis;
+        return false;
+    }
+
+    private boolean isCached(View candidate) {
+        for (View view : cache.keySet()) {
+            if (matches(candidate, view)) return true;
+        }
+        return false;
+    }
+
+    private int findCandidate(View view) {
+        if (base == null) return -1;
+
+        for (int move = 0; move < MOVES; move++) {
+            if (matches(apply(move, base), view)) return move;
+        }
+        return -1;
+    }
+
+    /**
+     * Check if a rendered view is the one wanted for a candidate. With automatic budgets the candidate's budget is
+     * not known until it is probed, so only the place has to match.
+     */
+    private boolean matches(View candidate, View view) {
+        return autoIterations ? isSamePlace(candidate, view) : candidate.equals(view);
+    }
+
+    /**
+     * The view one key press away, worked out exactly as Fractal does so that a cached view compares equal
+     */
+    private static View apply(int move, View view) {
+        switch (move) {
+            case RIGHT: return view.moved(view.width / 5.0, 0);
+            case LEFT: return view.moved(-view.width / 5.0, 0);
+            case UP: return view.moved(0, -view.height / 5.0);
+            case DOWN: return view.moved(0, view.height / 5.0);
+            case ZOOM_IN: return view.zoomed(2);
+            default: return view.zoomed(0.5);
+        }
+    }
+
+    /**
+     * Check if two views cover the same region of the same fractal, whatever their budgets
+     */
+    private static boolean isSamePlace(View a, View b) {
+        View budgetless = a.moved(0, 0);
+        budgetless.maxIterations = b.maxIterations;
+        return budgetless.equals(b);
+    }
+
+    /**
+     * A neighbour to render, with the view it was picked for
+     */
+    private static final class Job {
+        View view;
+        long epoch;
+        boolean autoIterations;
+        int generation;
+
+        Job(View view, long epoch, boolean autoIterations) {
+            this.view = view;
+            this.epoch = epoch;
+            this.autoIterations = autoIterations;
+        }
+    }
+
+    /**
+     * A cached frame, with the CPU time it took
+     */
+    private static final class Speculation {
+        Frame frame;
+        double busyMillis;
+        boolean autoIterations;
+
+        Speculation(Frame frame, double busyMillis, boolean autoIterations) {
+            this.frame = frame;
+            this.busyMillis = busyMillis;
+            this.autoIterations = autoIterations;
+        }
+    }
+}
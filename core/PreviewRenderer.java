@@ -0,0 +1,298 @@
+package mandelbrot.core;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * Renders live previews of views that change as fast as the mouse moves, such as the Julia set under the cursor.
+ *
+ * Requests do not queue up: there is a single slot holding the most recent one, and each new request replaces
+ * whatever was waiting, so the preview always catches up with the latest view instead of replaying old ones.
+ * A worker thread shows each request at a reduced resolution first, then refines it to full resolution once no
+ * newer request has come in for a frame, which is when the mouse has come to rest. A refinement still running when
+ * a newer request comes in is cancelled and dropped. Frames are shown at most at the target frame rate, and the
+ * reduced resolution adapts so the first pass fits in one frame. Full resolution results are kept in a small cache,
+ * so going back over views already seen shows them at once.
+ */
+public class PreviewRenderer {
+
+    private static final int CACHE_SIZE = 16;
+    private static final int MAX_SCALE = 16;
+
+    Renderer renderer;
+    Consumer<Frame> display;
+    long frameNanos;
+
+    Request pending;
+    Request refining;
+    int scale;
+    long nextFrameTime;
+    Thread worker;
+
+    Map<Request, Frame> cache;
+
+    long requests;
+    long requestsTaken;
+    long framesShown;
+    long cacheHits;
+    long refinementsCancelled;
+
+
+    /**
+     * Constructor
+     *
+     * @param renderer  the renderer whose threads do the work, which stale refinements are cancelled on, so it
+     *                  should not be shared
+     * @param frameRate how many frames to show per second at most
+     * @param display   receives every frame to show, on the preview thread
+     */
+    public PreviewRenderer(Renderer renderer, double frameRate, Consumer<Frame> display) {
+        this.renderer = renderer;
+        this.display = display;
+        frameNanos = (long) (1e9 / frameRate);
+        scale = 4;
+
+        // Least recently shown views are dropped first
+        cache = new LinkedHashMap<Request, Frame>(CACHE_SIZE, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Request, Frame> eldest) {
+                return size() > CACHE_SIZE;
+            }
+        };
+
+        worker = new Thread(this::run, "preview");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Ask for a view to be previewed, replacing any request that has not been started yet
+     *
+     * @param view          the view to render
+     * @param brush         the brush to paint with
+     * @param colorOffset   the color offset used by the brush
+     */
+    public synchronized void request(View view, Brush brush, float colorOffset) {
+        pending = new Request(view, brush, colorOffset);
+        requests++;
+        if (refining != null && !refining.equals(pending)) renderer.cancel();
+        notifyAll();
+    }
+
+    /**
+     * Stop the preview thread. Requests made afterwards are ignored.
+     */
+    public void shutdown() {
+        worker.interrupt();
+    }
+
+    /**
+     * @return a summary of how many requests were shown, skipped and served from the cache
+     */
+    public synchronized String getReport() {
+        return String.format("%d requests, %d frames shown, %d skipped as stale, %d refinements cancelled, %d cache hits, " +
+                        "first pass at 1/%d resolution",
+                requests, framesShown, requests - requestsTaken - (pending != null ? 1 : 0), refinementsCancelled,
+                cacheHits, scale);
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                Request request = take();
+
+                // A render that fails only loses its own request
+                try {
+                    preview(request);
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                }
+            }
+        } catch (InterruptedException e) {
+            // Shut down
+        }
+    }
+
+    /**
+     * Show a request, from the cache, or by a rough pass and then a refinement at full resolution
+     */
+    private void preview(Request request) throws InterruptedException, ExecutionException {
+        Frame cached;
+        synchronized (this) {
+            cached = cache.get(request);
+            if (cached != null) cacheHits++;
+        }
+        if (cached != null) {
+            show(cached);
+            return;
+        }
+
+        // Rough pass first, unless the full resolution is already fast enough to keep up
+        Frame frame;
+        if (scale > 1) {
+            long startTime = System.nanoTime();
+            View small = request.view.scaledDown(scale);
+            show(upscale(renderer.render(small, request.brush, request.colorOffset), request.view, scale));
+            adaptScale(System.nanoTime() - startTime);
+
+            // Only refine once the requests stop coming
+            if (awaitNewer(request, frameNanos)) return;
+
+            frame = refine(request);
+            if (frame == null) return;
+        } else {
+            // Every request is then rendered at full resolution, so these renders are not cancelled, or the preview
+            // would show nothing while the mouse moves
+            long startTime = System.nanoTime();
+            frame = renderer.render(request.view, request.brush, request.colorOffset);
+            adaptScale(System.nanoTime() - startTime);
+        }
+
+        synchronized (this) {
+            cache.put(request, frame);
+        }
+        show(frame);
+    }
+
+    /**
+     * Render a request at full resolution, unless a newer one comes in first
+     *
+     * @return the frame, or null if the refinement was cancelled for a newer request
+     */
+    private Frame refine(Request request) throws InterruptedException, ExecutionException {
+        // The generation is read under the same lock that request checks refining under, so no cancel is missed
+        int renderGeneration;
+        synchronized (this) {
+            if (pending != null && !pending.equals(request)) return null;
+            renderGeneration = renderer.generation.get();
+            refining = request;
+        }
+
+        try {
+            View view = request.view;
+            Frame frame = new Frame(view.width, view.height);
+            renderer.render(view, request.brush, request.colorOffset, frame, 0, view.width, 0, view.height, renderGeneration);
+            return frame;
+        } catch (CancellationException e) {
+            synchronized (this) {
+                refinementsCancelled++;
+            }
+            return null;
+        } finally {
+            synchronized (this) {
+                refining = null;
+            }
+        }
+    }
+
+    /**
+     * Wait for the next frame slot, then for a request, and take the most recent one
+     */
+    private synchronized Request take() throws InterruptedException {
+        long wait;
+        while ((wait = nextFrameTime - System.nanoTime()) > 0) {
+            wait(wait / 1_000_000, (int) (wait % 1_000_000));
+        }
+
+        while (pending == null) wait();
+
+        Request request = pending;
+        pending = null;
+        requestsTaken++;
+        return request;
+    }
+
+    /**
+     * Wait up to a time for a newer request than the one given
+     *
+     * @return true if one came in
+     */
+    private synchronized boolean awaitNewer(Request request, long nanos) throws InterruptedException {
+        long deadline = System.nanoTime() + nanos;
+        long wait;
+        while (pending == null && (wait = deadline - System.nanoTime()) > 0) {
+            wait(wait / 1_000_000, (int) (wait % 1_000_000));
+        }
+
+        return pending != null && !pending.equals(request);
+    }
+
+    private void show(Frame frame) {
+        synchronized (this) {
+            framesShown++;
+            nextFrameTime = System.nanoTime() + frameNanos;
+        }
+        display.accept(frame);
+    }
+
+    /**
+     * Make the first pass coarser when it takes longer than a frame, and finer when it has time to spare
+     */
+    private synchronized void adaptScale(long passNanos) {
+        if (passNanos > frameNanos && scale < MAX_SCALE) {
+            scale *= 2;
+        } else if (passNanos * 4 * 4 < frameNanos && scale > 1) {
+            // Halving the scale quadruples the pixels, so only go finer if that still fits in a quarter of a frame
+            scale /= 2;
+        }
+    }
+
+    /**
+     * Blow a reduced resolution frame up to the size of a view, repeating each pixel in a block
+     */
+    private static Frame upscale(Frame small, View view, int scale) {
+        Frame frame = new Frame(view.width, view.height);
+        frame.view = view;
+        frame.brush = small.brush;
+        frame.colorOffset = small.colorOffset;
+        if (small.distances != null) frame.distances = new double[frame.width * frame.height];
+
+        for (int yPixel = 0; yPixel < frame.height; yPixel++) {
+            int smallRow = yPixel / scale * small.width;
+
+            for (int xPixel = 0; xPixel < frame.width; xPixel++) {
+                int index = yPixel * frame.width + xPixel;
+                int smallIndex = smallRow + xPixel / scale;
+
+                frame.iterations[index] = small.iterations[smallIndex];
+                frame.escapeMagnitudes[index] = small.escapeMagnitudes[smallIndex];
+                frame.pixels[index] = small.pixels[smallIndex];
+                if (small.distances != null) frame.distances[index] = small.distances[smallIndex] * scale;
+            }
+        }
+
+        return frame;
+    }
+
+    /**
+     * A view together with how to paint it, so a cached frame only matches when it would look the same
+     */
+    private static final class Request {
+        View view;
+        Brush brush;
+        float colorOffset;
+
+        Request(View view, Brush brush, float colorOffset) {
+            this.view = view;
+            this.brush = brush;
+            this.colorOffset = colorOffset;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Request)) return false;
+
+            Request request = (Request) other;
+            return view.equals(request.view) && brush == request.brush && colorOffset == request.colorOffset;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(view, System.identityHashCode(brush), colorOffset);
+        }
+    }
+}
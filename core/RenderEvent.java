@@ -0,0 +1,47 @@
+package mandelbrot.core;
+
+import jdk.jfr.*;
+
+/**
+ * Flight Recorder event for a finished render, so slow frames can be analyzed offline alongside GC and CPU data.
+ */
+@Name("mandelbrot.Render")
+@Label("Render")
+@Category("Mandelbrot")
+@Description("A view rendered by the Renderer")
+class RenderEvent extends Event {
+
+    @Label("Width")
+    int width;
+
+    @Label("Height")
+    int height;
+
+    @Label("Max Iterations")
+    int maxIterations;
+
+    @Label("Threads")
+    int threads;
+
+    @Label("Pixels")
+    long pixels;
+
+    @Label("Iterations")
+    long iterations;
+
+    @Label("Interior Fraction")
+    @Percentage
+    double interiorFraction;
+
+    @Label("Thread Utilization")
+    @Percentage
+    double utilization;
+
+    @Label("Slowest Task")
+    @Timespan(Timespan.MILLISECONDS)
+    long slowestTask;
+
+    @Label("Tail Ratio")
+    @Description("Time the busiest thread worked, over the mean of all threads")
+    double tailRatio;
+}
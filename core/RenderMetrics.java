@@ -0,0 +1,189 @@
+package mandelbrot.core;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timings and counts for one render. Worker threads each write only the slots of their own task, into atomic arrays,
+ * and progress is counted with a LongAdder, so the metrics of a render in progress can be read from any thread.
+ * Tasks still running count as zero.
+ */
+public class RenderMetrics {
+
+    final int threads;
+    final long pixels;
+    final long startNanos;
+    final LongAdder pixelsDone;
+
+    final AtomicLongArray taskNanos;
+    final AtomicLongArray taskPixels;
+    final AtomicLongArray taskIterations;
+    final AtomicLongArray taskInterior;
+    final AtomicLongArray taskThreads;
+
+    volatile long wallNanos;
+
+
+    /**
+     * Constructor
+     *
+     * @param threads   the number of threads in the pool
+     * @param tasks     the number of tasks the render is split into
+     * @param pixels    the number of pixels the render iterates
+     */
+    RenderMetrics(int threads, int tasks, long pixels) {
+        this.threads = threads;
+        this.pixels = pixels;
+
+        startNanos = System.nanoTime();
+        pixelsDone = new LongAdder();
+
+        taskNanos = new AtomicLongArray(tasks);
+        taskPixels = new AtomicLongArray(tasks);
+        taskIterations = new AtomicLongArray(tasks);
+        taskInterior = new AtomicLongArray(tasks);
+        taskThreads = new AtomicLongArray(tasks);
+    }
+
+    /**
+     * Record a finished task. Only the thread that ran the task writes its slot, and it is called on that thread.
+     * The time goes in last, so a reader that sees it also sees the thread that spent it.
+     */
+    void finishTask(int task, long nanos, long pixels, long iterations, long interior) {
+        taskThreads.set(task, Thread.currentThread().getId());
+        taskPixels.set(task, pixels);
+        taskIterations.set(task, iterations);
+        taskInterior.set(task, interior);
+        taskNanos.set(task, nanos);
+    }
+
+    void finish() {
+        wallNanos = System.nanoTime() - startNanos;
+    }
+
+    public boolean isFinished() {
+        return wallNanos != 0;
+    }
+
+    /**
+     * @return the fraction of pixels iterated so far, from 0 to 1
+     */
+    public double getProgress() {
+        return pixels == 0 ? 1 : pixelsDone.sum() / (double) pixels;
+    }
+
+    public double getWallMillis() {
+        return (isFinished() ? wallNanos : System.nanoTime() - startNanos) / 1e6;
+    }
+
+    public long getPixels() {
+        return pixels;
+    }
+
+    public long getIterations() {
+        long total = 0;
+        for (int i = 0; i < taskIterations.length(); i++) total += taskIterations.get(i);
+        return total;
+    }
+
+    public double getMegapixelsPerSecond() {
+        return pixels / getWallMillis() / 1e3;
+    }
+
+    public double getIterationsPerSecond() {
+        return getIterations() / getWallMillis() * 1e3;
+    }
+
+    /**
+     * @return the fraction of pixels that ran all the way to maxIterations
+     */
+    public double getInteriorFraction() {
+        long interior = 0;
+        for (int i = 0; i < taskInterior.length(); i++) interior += taskInterior.get(i);
+        return pixels == 0 ? 0 : interior / (double) pixels;
+    }
+
+    /**
+     * @return the time each task took, in milliseconds
+     */
+    public double[] getTaskMillis() {
+        double[] millis = new double[taskNanos.length()];
+        for (int i = 0; i < millis.length; i++) millis[i] = taskNanos.get(i) / 1e6;
+        return millis;
+    }
+
+    public double getSlowestTaskMillis() {
+        long slowest = 0;
+        for (int i = 0; i < taskNanos.length(); i++) slowest = Math.max(slowest, taskNanos.get(i));
+        return slowest / 1e6;
+    }
+
+    public double getMeanTaskMillis() {
+        long total = 0;
+        for (int i = 0; i < taskNanos.length(); i++) total += taskNanos.get(i);
+        return taskNanos.length() == 0 ? 0 : total / 1e6 / taskNanos.length();
+    }
+
+    /**
+     * @return the time each thread of the pool spent on tasks, in milliseconds, in no particular order. Threads that
+     * got no task count as zero.
+     */
+    public double[] getThreadMillis() {
+        Map<Long, Long> busy = new HashMap<>();
+        for (int i = 0; i < taskNanos.length(); i++) {
+            long nanos = taskNanos.get(i);
+            if (nanos != 0) busy.merge(taskThreads.get(i), nanos, Long::sum);
+        }
+
+        double[] millis = new double[Math.max(threads, busy.size())];
+        int thread = 0;
+        for (long nanos : busy.values()) millis[thread++] = nanos / 1e6;
+        return millis;
+    }
+
+    /**
+     * @return how much longer the busiest thread worked than the mean thread. 1 means the work was spread perfectly,
+     * and the frame took as long as the busiest thread.
+     */
+    public double getTailRatio() {
+        double[] millis = getThreadMillis();
+        double busiest = 0;
+        double total = 0;
+        for (double time : millis) {
+            busiest = Math.max(busiest, time);
+            total += time;
+        }
+        return total == 0 ? 1 : busiest / (total / millis.length);
+    }
+
+    /**
+     * @return the time all threads together spent on tasks so far, in milliseconds
+     */
+    public double getBusyMillis() {
+        long busy = 0;
+        for (int i = 0; i < taskNanos.length(); i++) busy += taskNanos.get(i);
+        return busy / 1e6;
+    }
+
+    /**
+     * @return the share of the pool's time spent working, from 0 to 1
+     */
+    public double getUtilization() {
+        double wall = isFinished() ? wallNanos : System.nanoTime() - startNanos;
+        return wall == 0 ? 0 : Math.min(1, getBusyMillis() * 1e6 / (threads * wall));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Frame: %.0f ms\n" +
+                        "Tasks: %.0f ms mean, %.0f ms slowest\n" +
+                        "%.2f Mpixels/s\n" +
+                        "%.1fM iterations/s\n" +
+                        "Max iterations: %.1f%% of pixels\n" +
+                        "Threads: %d, %.0f%% busy, busiest %.2fx mean",
+                getWallMillis(), getMeanTaskMillis(), getSlowestTaskMillis(), getMegapixelsPerSecond(),
+                getIterationsPerSecond() / 1e6, 100 * getInteriorFraction(), threads, 100 * getUtilization(), getTailRatio());
+    }
+}
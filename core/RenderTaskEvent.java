@@ -0,0 +1,29 @@
+package mandelbrot.core;
+
+import jdk.jfr.*;
+
+/**
+ * Flight Recorder event for one task of a render, recorded on the worker thread that ran it.
+ */
+@Name("mandelbrot.RenderTask")
+@Label("Render Task")
+@Category("Mandelbrot")
+@Description("One chunk of tiles of a render, iterated by a single worker thread")
+class RenderTaskEvent extends Event {
+
+    @Label("Task")
+    int task;
+
+    @Label("Tiles")
+    int tiles;
+
+    @Label("Pixels")
+    long pixels;
+
+    @Label("Iterations")
+    long iterations;
+
+    @Label("Predicted Cost")
+    @Description("What the cost map expected the chunk to take, in iterations")
+    double predictedCost;
+}
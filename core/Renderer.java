@@ -0,0 +1,489 @@
+package mandelbrot.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Renders views into frames on a pool of worker threads. This is the compute core behind Fractal, and it does not
+ * depend on JavaFX, so it can be driven from batch renderers and the command line as well.
+ */
+public class Renderer {
+
+    // Chunks each thread gets on average, so the pool can even out whatever the prediction gets wrong
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    int threads;
+    ExecutorService executor;
+    volatile RenderMetrics metrics;
+
+    boolean isCostGuided;
+    CostMap costMap;
+
+    // Bumped to cancel whatever is rendering
+    final AtomicInteger generation = new AtomicInteger();
+
+
+    /**
+     * Constructor for a renderer using every available core
+     */
+    public Renderer() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructor
+     *
+     * @param threads   the number of worker threads
+     */
+    public Renderer(int threads) {
+        this(threads, Thread.NORM_PRIORITY);
+    }
+
+    /**
+     * Constructor for a renderer whose threads run at a given priority
+     *
+     * @param threads   the number of worker threads
+     * @param priority  the priority of the worker threads
+     */
+    public Renderer(int threads, int priority) {
+        this.threads = threads;
+        isCostGuided = true;
+
+        executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "renderer");
+            thread.setDaemon(true);
+            thread.setPriority(priority);
+            return thread;
+        });
+    }
+
+    /**
+     * Render a whole view into a new frame
+     *
+     * @param view          the view to render
+     * @param brush         the brush to paint with, or null to only iterate and color the frame later with recolor
+     * @param colorOffset   the color offset used by the brush
+     * @return the rendered frame
+     */
+    public Frame render(View view, Brush brush, float colorOffset) throws InterruptedException, ExecutionException {
+        Frame frame = new Frame(view.width, view.height);
+        render(view, brush, colorOffset, frame, 0, view.width, 0, view.height);
+        return frame;
+    }
+
+    /**
+     * Render a rectangle of a view into an existing frame. Pixels outside the rectangle are left alone.
+     *
+     * The rectangle is cut into tiles, and the tiles are grouped into chunks of about equal predicted cost, several
+     * per thread, which the pool picks up most expensive first. That way a thread that drew a slow part of the set
+     * does not hold up the whole frame while the others sit idle. Costs are predicted from the map measured on the
+     * last full render, and every full render measures a new one.
+     *
+     * A render can be stopped from another thread with cancel, in which case it throws a CancellationException and
+     * leaves the frame half done.
+     *
+     * A brush that depends on the whole frame colors all of it once the rectangle is done. To fill a frame in several
+     * rectangles with such a brush, render them without a brush and call recolor once after the last.
+     *
+     * @param view          the view to render
+     * @param brush         the brush to paint with, or null to only iterate and color the frame later with recolor
+     * @param colorOffset   the color offset used by the brush
+     * @param frame         the frame to render into
+     * @param xPixelStart   left edge of the rectangle, inclusive
+     * @param xPixelEnd     right edge of the rectangle, exclusive
+     * @param yPixelStart   top edge of the rectangle, inclusive
+     * @param yPixelEnd     bottom edge of the rectangle, exclusive
+     */
+    public void render(View view, Brush brush, float colorOffset, Frame frame, int xPixelStart, int xPixelEnd,
+                       int yPixelStart, int yPixelEnd) throws InterruptedException, ExecutionException {
+        render(view, brush, colorOffset, frame, xPixelStart, xPixelEnd, yPixelStart, yPixelEnd, generation.get());
+    }
+
+    /**
+     * Render a rectangle of a view, as long as no cancel comes after a generation read from the renderer earlier.
+     * This lets a caller decide to render and read the generation under one lock, so that a cancel made in between
+     * is not missed.
+     */
+    void render(View view, Brush brush, float colorOffset, Frame frame, int xPixelStart, int xPixelEnd,
+                int yPixelStart, int yPixelEnd, int renderGeneration) throws InterruptedException, ExecutionException {
+        frame.view = view;
+        frame.brush = brush;
+        frame.colorOffset = colorOffset;
+        if (xPixelEnd <= xPixelStart || yPixelEnd <= yPixelStart) return;
+        if (view.isDistanceEstimated && frame.distances == null) frame.distances = new double[frame.width * frame.height];
+
+        RenderEvent event = new RenderEvent();
+        event.begin();
+
+        // Brushes that look at the whole frame can only color it once every pixel has been iterated
+        boolean color = brush != null && !brush.isFrameDependent();
+
+        // Only a render of the whole view measures a map the next view can be predicted from
+        boolean fullFrame = xPixelStart == 0 && xPixelEnd == view.width && yPixelStart == 0 && yPixelEnd == view.height;
+        CostMap measured = fullFrame && isCostGuided ? new CostMap(view) : null;
+
+        List<Chunk> chunks = isCostGuided
+                ? tileChunks(view, xPixelStart, xPixelEnd, yPixelStart, yPixelEnd)
+                : sliceChunks(xPixelStart, xPixelEnd, yPixelStart, yPixelEnd);
+
+        RenderMetrics renderMetrics = new RenderMetrics(threads, chunks.size(),
+                (long) (xPixelEnd - xPixelStart) * (yPixelEnd - yPixelStart));
+        metrics = renderMetrics;
+
+        Collection<Callable<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < chunks.size(); i++) {
+            tasks.add(new RenderChunkTask(i, renderMetrics, view, color ? brush : null, colorOffset, frame,
+                    chunks.get(i), measured, generation, renderGeneration));
+        }
+
+        for (Future<Void> future : executor.invokeAll(tasks)) {
+            future.get();
+        }
+
+        if (generation.get() != renderGeneration) {
+            renderMetrics.finish();
+            throw new CancellationException("Render cancelled");
+        }
+
+        if (brush != null && !color) recolor(frame, brush, colorOffset);
+
+        if (measured != null) {
+            measured.finish();
+            costMap = measured;
+        }
+
+        renderMetrics.finish();
+        commitRenderEvent(event, view, renderMetrics);
+    }
+
+    /**
+     * Stop the render in progress, if any. Its worker threads give up after the row they are on.
+     */
+    public void cancel() {
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Choose whether to balance renders by predicted cost, or to split them into one vertical slice per thread
+     *
+     * @param costGuided
+     */
+    public void setCostGuided(boolean costGuided) {
+        isCostGuided = costGuided;
+    }
+
+    /**
+     * Cut a rectangle into tiles on the grid of the cost map, and group them into chunks of about equal predicted
+     * cost, most expensive first. Tiles are grouped in reading order, so a chunk stays a compact strip of the frame.
+     */
+    private List<Chunk> tileChunks(View view, int xPixelStart, int xPixelEnd, int yPixelStart, int yPixelEnd) {
+        CostMap predictor = costMap != null && costMap.predicts(view) ? costMap : null;
+        int columns = (view.width + CostMap.TILE_SIZE - 1) / CostMap.TILE_SIZE;
+
+        List<Tile> tiles = new ArrayList<>();
+        double total = 0;
+
+        for (int row = yPixelStart / CostMap.TILE_SIZE; row * CostMap.TILE_SIZE < yPixelEnd; row++) {
+            for (int column = xPixelStart / CostMap.TILE_SIZE; column * CostMap.TILE_SIZE < xPixelEnd; column++) {
+                Tile tile = new Tile(row * columns + column,
+                        Math.max(xPixelStart, column * CostMap.TILE_SIZE),
+                        Math.min(xPixelEnd, (column + 1) * CostMap.TILE_SIZE),
+                        Math.max(yPixelStart, row * CostMap.TILE_SIZE),
+                        Math.min(yPixelEnd, (row + 1) * CostMap.TILE_SIZE));
+
+                // Without a map every pixel is assumed to cost the same
+                tile.predictedCost = predictor != null
+                        ? predictor.predict(view, tile.xPixelStart, tile.xPixelEnd, tile.yPixelStart, tile.yPixelEnd)
+                        : tile.getPixels();
+
+                tiles.add(tile);
+                total += tile.predictedCost;
+            }
+        }
+
+        // Cut the running total at every multiple of the target, at whichever tile boundary lands closest, so there
+        // are never more chunks than the pool divides evenly
+        double target = total / (threads * CHUNKS_PER_THREAD);
+        List<Chunk> chunks = new ArrayList<>();
+        Chunk chunk = null;
+        int chunkNumber = -1;
+        double runningTotal = 0;
+
+        for (Tile tile : tiles) {
+            int number = (int) ((runningTotal + tile.predictedCost / 2) / target);
+            if (chunk == null || number > chunkNumber) {
+                chunk = new Chunk();
+                chunks.add(chunk);
+                chunkNumber = number;
+            }
+            chunk.add(tile);
+            runningTotal += tile.predictedCost;
+        }
+
+        chunks.sort((a, b) -> Double.compare(b.predictedCost, a.predictedCost));
+        return chunks;
+    }
+
+    /**
+     * Split a rectangle into one vertical slice per thread, the way renders were split before they were balanced
+     */
+    private List<Chunk> sliceChunks(int xPixelStart, int xPixelEnd, int yPixelStart, int yPixelEnd) {
+        List<Chunk> chunks = new ArrayList<>();
+        int sliceWidth = Math.max(1, (xPixelEnd - xPixelStart) / threads);
+
+        // The last slice picks up any columns left over by the division
+        for (int xStart = xPixelStart; xStart < xPixelEnd; xStart += sliceWidth) {
+            int xEnd = xPixelEnd - xStart < 2 * sliceWidth ? xPixelEnd : xStart + sliceWidth;
+
+            Chunk chunk = new Chunk();
+            chunk.add(new Tile(-1, xStart, xEnd, yPixelStart, yPixelEnd));
+            chunks.add(chunk);
+
+            if (xEnd == xPixelEnd) break;
+        }
+
+        return chunks;
+    }
+
+    /**
+     * @return the metrics of the render in progress, or of the last one if none is running, or null before the first
+     */
+    public RenderMetrics getMetrics() {
+        return metrics;
+    }
+
+    private void commitRenderEvent(RenderEvent event, View view, RenderMetrics renderMetrics) {
+        if (!event.shouldCommit()) return;
+
+        event.width = view.width;
+        event.height = view.height;
+        event.maxIterations = view.maxIterations;
+        event.threads = threads;
+        event.pixels = renderMetrics.pixels;
+        event.iterations = renderMetrics.getIterations();
+        event.interiorFraction = renderMetrics.getInteriorFraction();
+        event.utilization = renderMetrics.getUtilization();
+        event.slowestTask = Math.round(renderMetrics.getSlowestTaskMillis());
+        event.tailRatio = renderMetrics.getTailRatio();
+        event.commit();
+    }
+
+    /**
+     * Repaint a frame with a new brush or color offset from its retained iteration data, without iterating again
+     *
+     * @param frame         the frame to repaint
+     * @param brush         the brush to paint with
+     * @param colorOffset   the color offset used by the brush
+     */
+    public void recolor(Frame frame, Brush brush, float colorOffset) throws InterruptedException, ExecutionException {
+        Brush prepared = brush.prepare(frame, this);
+        frame.brush = prepared;
+        frame.colorOffset = colorOffset;
+
+        Collection<Callable<Void>> tasks = new ArrayList<>();
+        int bandHeight = Math.max(1, frame.height / threads);
+
+        for (int yStart = 0; yStart < frame.height; yStart += bandHeight) {
+            int start = yStart * frame.width;
+            int end = Math.min(frame.height, yStart + bandHeight) * frame.width;
+
+            tasks.add(() -> {
+                double[] distances = frame.distances;
+                for (int index = start; index < end; index++) {
+                    frame.pixels[index] = distances != null
+                            ? prepared.getColor(frame.iterations[index], frame.escapeMagnitudes[index], distances[index], colorOffset)
+                            : prepared.getColor(frame.iterations[index], frame.escapeMagnitudes[index], colorOffset);
+                }
+                return null;
+            });
+        }
+
+        for (Future<Void> future : executor.invokeAll(tasks)) {
+            future.get();
+        }
+    }
+
+    /**
+     * Count how many pixels of a frame took each number of iterations. Every thread counts its own band of rows into
+     * its own array, and the arrays are summed once all threads are done, so the counting never contends.
+     *
+     * @param frame the frame to count
+     * @return counts indexed by iteration, from 0 up to and including the frame's maxIterations
+     */
+    public long[] histogram(Frame frame) throws InterruptedException, ExecutionException {
+        int bins = frame.view.maxIterations + 1;
+
+        Collection<Callable<long[]>> tasks = new ArrayList<>();
+        int bandHeight = Math.max(1, frame.height / threads);
+
+        for (int yStart = 0; yStart < frame.height; yStart += bandHeight) {
+            int start = yStart * frame.width;
+            int end = Math.min(frame.height, yStart + bandHeight) * frame.width;
+
+            tasks.add(() -> {
+                long[] counts = new long[bins];
+                for (int index = start; index < end; index++) {
+                    counts[Math.min(frame.iterations[index], bins - 1)]++;
+                }
+                return counts;
+            });
+        }
+
+        long[] histogram = new long[bins];
+        for (Future<long[]> future : executor.invokeAll(tasks)) {
+            long[] counts = future.get();
+            for (int i = 0; i < bins; i++) {
+                histogram[i] += counts[i];
+            }
+        }
+
+        return histogram;
+    }
+
+    /**
+     * Stop the worker threads. The renderer cannot be used afterwards.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * A rectangle of the frame, at most one tile of the cost map
+     */
+    private static final class Tile {
+        int index;
+        int xPixelStart, xPixelEnd;
+        int yPixelStart, yPixelEnd;
+        double predictedCost;
+
+        Tile(int index, int xPixelStart, int xPixelEnd, int yPixelStart, int yPixelEnd) {
+            this.index = index;
+            this.xPixelStart = xPixelStart;
+            this.xPixelEnd = xPixelEnd;
+            this.yPixelStart = yPixelStart;
+            this.yPixelEnd = yPixelEnd;
+        }
+
+        long getPixels() {
+            return (long) (xPixelEnd - xPixelStart) * (yPixelEnd - yPixelStart);
+        }
+    }
+
+    /**
+     * The tiles one task renders
+     */
+    private static final class Chunk {
+        List<Tile> tiles = new ArrayList<>();
+        double predictedCost;
+
+        void add(Tile tile) {
+            tiles.add(tile);
+            predictedCost += tile.predictedCost;
+        }
+    }
+
+    /**
+     * This class is a worker that renders a chunk of tiles of the Mandelbrot/Julia set.
+     */
+    private static final class RenderChunkTask implements Callable<Void> {
+        int task;
+        RenderMetrics metrics;
+        View view;
+        Brush brush;
+        float colorOffset;
+        Frame frame;
+        Chunk chunk;
+        CostMap measured;
+        AtomicInteger generation;
+        int renderGeneration;
+
+        RenderChunkTask(int task, RenderMetrics metrics, View view, Brush brush, float colorOffset, Frame frame,
+                        Chunk chunk, CostMap measured, AtomicInteger generation, int renderGeneration) {
+            this.task = task;
+            this.metrics = metrics;
+            this.view = view;
+            this.brush = brush;
+            this.colorOffset = colorOffset;
+            this.frame = frame;
+            this.chunk = chunk;
+            this.measured = measured;
+            this.generation = generation;
+            this.renderGeneration = renderGeneration;
+        }
+
+        @Override
+        public Void call() {
+            RenderTaskEvent event = new RenderTaskEvent();
+            event.begin();
+            long startTime = System.nanoTime();
+
+            EscapeTime escapeTime = new EscapeTime(view.formula);
+            int maxIterations = view.maxIterations;
+
+            // Distances are kept in pixels rather than units of the plane, so brushes can draw to the same width at any zoom
+            double[] distances = view.isDistanceEstimated ? frame.distances : null;
+            double zoom = view.zoom;
+
+            long pixels = 0;
+            long iterations = 0;
+            long interior = 0;
+
+            tiles:
+            for (Tile tile : chunk.tiles) {
+                int rowPixels = tile.xPixelEnd - tile.xPixelStart;
+                long tileIterations = 0;
+
+                // Iterate over every pixel in the tile, figure out if it's in the set, and color it
+                for (int yPixel = tile.yPixelStart; yPixel < tile.yPixelEnd; yPixel++) {
+                    // The render has been cancelled, so the rest of the chunk is not wanted
+                    if (generation.get() != renderGeneration) break tiles;
+
+                    double im = view.getImaginaryComponent(yPixel);
+
+                    for (int xPixel = tile.xPixelStart; xPixel < tile.xPixelEnd; xPixel++) {
+                        int iteration = escapeTime.iterate(view, view.getRealComponent(xPixel), im);
+
+                        // Use the brush to pick a color, unless the whole frame gets colored once it is done
+                        int index = yPixel * frame.width + xPixel;
+                        frame.iterations[index] = iteration;
+                        frame.escapeMagnitudes[index] = escapeTime.escapeMagnitude;
+                        if (distances != null) {
+                            distances[index] = escapeTime.distance * zoom;
+                            if (brush != null) {
+                                frame.pixels[index] = brush.getColor(iteration, escapeTime.escapeMagnitude, distances[index], colorOffset);
+                            }
+                        } else if (brush != null) {
+                            frame.pixels[index] = brush.getColor(iteration, escapeTime.escapeMagnitude, colorOffset);
+                        }
+
+                        tileIterations += iteration;
+                        if (iteration == maxIterations) interior++;
+                    }
+
+                    metrics.pixelsDone.add(rowPixels);
+                }
+
+                if (measured != null) {
+                    measured.costs[tile.index] = tileIterations + CostMap.PIXEL_COST * tile.getPixels();
+                }
+
+                pixels += tile.getPixels();
+                iterations += tileIterations;
+            }
+
+            metrics.finishTask(task, System.nanoTime() - startTime, pixels, iterations, interior);
+
+            event.task = task;
+            event.tiles = chunk.tiles.size();
+            event.pixels = pixels;
+            event.iterations = iterations;
+            event.predictedCost = chunk.predictedCost;
+            event.commit();
+
+            return null;
+        }
+    }
+}
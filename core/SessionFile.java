@@ -0,0 +1,459 @@
+package mandelbrot.core;
+
+import mandelbrot.brushes.*;
+import mandelbrot.formulas.BurningShipFormula;
+import mandelbrot.formulas.MandelbrotFormula;
+import mandelbrot.formulas.MultibrotFormula;
+import mandelbrot.formulas.TricornFormula;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntFunction;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A saved exploration session: the view on screen, the settings it is painted with and the history of views behind
+ * it, optionally with the iteration data of some of those views so they can be shown again without iterating.
+ *
+ * The file is binary. Iteration data comes first, one block per frame: its iteration counts, each stored as the
+ * difference from the pixel before and deflated, since neighboring pixels mostly share a count, preceded by their
+ * compressed length, and then its escape magnitudes as plain floats, which is plenty for coloring but too noisy to
+ * compress. A frame takes about 4 to 5 bytes a pixel that way, against 8 uncompressed. The states come last, and
+ * the file ends with the offset at which they start. Reading a session maps the file into memory and only parses the
+ * states: a block of iteration data is decoded the first time its state's frame is asked for, so a long history with
+ * many frames opens as fast as a short one, and frames that are never revisited are never read from disk.
+ *
+ * Brushes and formulas are stored by class name, and only the ones the application has are restored from it, so a
+ * session file can't make the application load any other class.
+ */
+public class SessionFile {
+
+    private static final int MAGIC = 0x4d534553;
+    private static final int VERSION = 2;
+
+    // The offset of the states, then the magic number again, at the very end of the file
+    private static final int TRAILER_SIZE = 12;
+
+    // Iteration data is written through a buffer of this many bytes
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+    // How long to give the collector to unmap a file that was let go of, before trying to replace it again
+    private static final long UNMAP_WAIT_MILLIS = 100;
+
+    // The brushes a session can name, each made with its budget
+    private static final Map<String, IntFunction<Brush>> BRUSHES = Map.of(
+            SmoothBrush.class.getName(), SmoothBrush::new,
+            ElegantBrush.class.getName(), ElegantBrush::new,
+            BandedBrush.class.getName(), BandedBrush::new,
+            BinaryBrush.class.getName(), BinaryBrush::new,
+            HistogramBrush.class.getName(), HistogramBrush::new,
+            BoundaryBrush.class.getName(), BoundaryBrush::new);
+
+    // The formulas a session can name, each made with its parameter, which is 0 for those without one
+    private static final Map<String, IntFunction<Formula>> FORMULAS = Map.of(
+            MandelbrotFormula.class.getName(), parameter -> new MandelbrotFormula(),
+            BurningShipFormula.class.getName(), parameter -> new BurningShipFormula(),
+            TricornFormula.class.getName(), parameter -> new TricornFormula(),
+            MultibrotFormula.class.getName(), MultibrotFormula::new);
+
+    State current;
+    boolean isAutoIterations;
+    List<State> mandelbrotHistory;
+    List<State> juliaHistory;
+
+
+    /**
+     * Constructor for a session to fill in and write
+     */
+    public SessionFile() {
+        mandelbrotHistory = new ArrayList<>();
+        juliaHistory = new ArrayList<>();
+    }
+
+    /**
+     * Read a session. Only the states are parsed here, their iteration data is read when it is first needed.
+     * The file stays mapped for as long as any of its states are in use, or until they are detached, and some systems
+     * won't replace a file while it is mapped.
+     *
+     * @param file the session file
+     * @return the session
+     */
+    public static SessionFile read(File file) throws IOException {
+        ByteBuffer data;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) throw new IOException(file + ": session too large to map");
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        int size = data.capacity();
+        if (size < TRAILER_SIZE || data.getInt(size - 4) != MAGIC) throw new IOException(file + ": not a session file");
+
+        long statesOffset = data.getLong(size - TRAILER_SIZE);
+        if (statesOffset < 0 || statesOffset > size - TRAILER_SIZE) throw new IOException(file + ": corrupt session file");
+
+        ByteBuffer states = data.duplicate();
+        states.position((int) statesOffset);
+
+        try {
+            if (states.getInt() != MAGIC || states.getInt() != VERSION) {
+                throw new IOException(file + ": unsupported session file version");
+            }
+
+            SessionFile session = new SessionFile();
+            session.isAutoIterations = states.get() != 0;
+            session.current = State.read(states, data);
+
+            int count = states.getInt();
+            for (int i = 0; i < count; i++) session.mandelbrotHistory.add(State.read(states, data));
+
+            count = states.getInt();
+            for (int i = 0; i < count; i++) session.juliaHistory.add(State.read(states, data));
+
+            return session;
+        } catch (RuntimeException e) {
+            // Truncated states, or a formula parameter out of range
+            throw new IOException(file + ": corrupt session file", e);
+        }
+    }
+
+    /**
+     * Write the session, replacing the file in one step once it is complete. States with a frame set have their
+     * iteration data written too, once per frame even when states share one. States still in use that were read from
+     * the file being replaced should be detached first.
+     *
+     * @param file the session file
+     */
+    public void write(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+
+        List<State> states = new ArrayList<>();
+        states.add(current);
+        states.addAll(mandelbrotHistory);
+        states.addAll(juliaHistory);
+
+        try {
+            try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+                Map<Frame, Long> frameOffsets = new IdentityHashMap<>();
+                ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+
+                for (State state : states) {
+                    if (state.frame == null || frameOffsets.containsKey(state.frame)) continue;
+
+                    frameOffsets.put(state.frame, channel.position());
+                    writeFrame(channel, buffer, state.frame);
+                }
+
+                long statesOffset = channel.position();
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeBoolean(isAutoIterations);
+                current.write(out, frameOffsets);
+
+                out.writeInt(mandelbrotHistory.size());
+                for (State state : mandelbrotHistory) state.write(out, frameOffsets);
+
+                out.writeInt(juliaHistory.size());
+                for (State state : juliaHistory) state.write(out, frameOffsets);
+
+                out.writeLong(statesOffset);
+                out.writeInt(MAGIC);
+
+                ByteBuffer tail = ByteBuffer.wrap(bytes.toByteArray());
+                while (tail.hasRemaining()) channel.write(tail);
+            }
+
+            replace(temp, file);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp.toPath());
+            throw e;
+        }
+    }
+
+    /**
+     * Move a finished session over the old one. A detached session file stays mapped until the collector finds its
+     * buffer unreachable, since the JDK has no public way to unmap one, so if the move is refused the collector gets
+     * one chance to let go of it before trying again.
+     */
+    private static void replace(File temp, File file) throws IOException {
+        try {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.gc();
+            try {
+                Thread.sleep(UNMAP_WAIT_MILLIS);
+            } catch (InterruptedException interrupted) {
+                Thread.currentThread().interrupt();
+            }
+
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private static void writeFrame(FileChannel channel, ByteBuffer buffer, Frame frame) throws IOException {
+        // The compressed length goes in front of the iteration counts once they are written
+        long lengthOffset = channel.position();
+        channel.position(lengthOffset + 4);
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        ByteBuffer deltas = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+        long compressedLength = 0;
+        try {
+            int previous = 0;
+            for (int iteration : frame.iterations) {
+                if (!deltas.hasRemaining()) compressedLength += deflate(channel, buffer, deflater, deltas, false);
+                deltas.putInt(iteration - previous);
+                previous = iteration;
+            }
+            compressedLength += deflate(channel, buffer, deflater, deltas, true);
+        } finally {
+            deflater.end();
+        }
+
+        if (compressedLength > Integer.MAX_VALUE) throw new IOException("Frame too large to save");
+        ByteBuffer length = ByteBuffer.allocate(4).putInt(0, (int) compressedLength);
+        while (length.hasRemaining()) channel.write(length, lengthOffset + length.position());
+
+        buffer.clear();
+        for (double escapeMagnitude : frame.escapeMagnitudes) {
+            if (!buffer.hasRemaining()) flush(channel, buffer);
+            buffer.putFloat((float) escapeMagnitude);
+        }
+
+        flush(channel, buffer);
+    }
+
+    /**
+     * Compress what has been put in a buffer and write it out, emptying the buffer
+     *
+     * @param last true to finish the compressed stream
+     * @return the number of compressed bytes written
+     */
+    private static long deflate(FileChannel channel, ByteBuffer output, Deflater deflater, ByteBuffer input,
+                                boolean last) throws IOException {
+        input.flip();
+        deflater.setInput(input);
+        if (last) deflater.finish();
+
+        long written = 0;
+        while (last ? !deflater.finished() : !deflater.needsInput()) {
+            output.clear();
+            deflater.deflate(output);
+            written += output.position();
+            flush(channel, output);
+        }
+
+        input.clear();
+        return written;
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) channel.write(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * One view of the session with the settings it was painted with, and where its iteration data is if it was kept
+     */
+    static final class State {
+        double reCenter, imCenter;
+        double zoom;
+        double readableZoom;
+        int maxIterations;
+        float colorOffset;
+        Brush brush;
+        Formula formula;
+        boolean isOrbitDensity;
+        boolean isAntiBuddhabrot;
+
+        boolean isJulia;
+        double juliaReSeed, juliaImSeed;
+
+        // The frame to write, or once read, the frame decoded so far
+        Frame frame;
+
+        // Where the iteration data is in a session that was read, if it has any
+        ByteBuffer data;
+        long frameOffset = -1;
+        int frameWidth, frameHeight;
+
+        /**
+         * @return true if the iteration data of this state was kept
+         */
+        boolean hasFrame() {
+            return frame != null || frameOffset >= 0;
+        }
+
+        /**
+         * Get the frame of this state, reading its iteration data the first time. The frame is not colored yet.
+         *
+         * @return the frame, or null if its iteration data was not kept
+         */
+        synchronized Frame getFrame() {
+            if (frame != null || frameOffset < 0) return frame;
+
+            Frame loaded = new Frame(frameWidth, frameHeight);
+            loaded.view = getView(frameWidth, frameHeight);
+
+            int pixels = frameWidth * frameHeight;
+            int compressedLength = data.getInt((int) frameOffset);
+            ByteBuffer block = data.duplicate();
+            block.limit((int) frameOffset + 4 + compressedLength).position((int) frameOffset + 4);
+
+            // A block that does not decode is treated as not kept, so the view is simply iterated again
+            try {
+                inflateIterations(block, loaded.iterations);
+            } catch (DataFormatException e) {
+                e.printStackTrace();
+                frameOffset = -1;
+                return null;
+            }
+
+            block.limit(block.capacity()).position((int) frameOffset + 4 + compressedLength);
+            FloatBuffer escapeMagnitudes = block.asFloatBuffer();
+            for (int i = 0; i < pixels; i++) loaded.escapeMagnitudes[i] = escapeMagnitudes.get(i);
+
+            frame = loaded;
+            return frame;
+        }
+
+        /**
+         * Decompress iteration counts stored as differences from the pixel before
+         */
+        private static void inflateIterations(ByteBuffer compressed, int[] iterations) throws DataFormatException {
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(compressed);
+                ByteBuffer deltas = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+
+                int previous = 0;
+                int pixel = 0;
+                while (pixel < iterations.length) {
+                    if (inflater.inflate(deltas) == 0 && (inflater.finished() || inflater.needsInput())) {
+                        throw new DataFormatException("Iteration counts end early");
+                    }
+
+                    deltas.flip();
+                    while (deltas.remaining() >= 4 && pixel < iterations.length) {
+                        previous += deltas.getInt();
+                        iterations[pixel++] = previous;
+                    }
+                    deltas.compact();
+                }
+            } finally {
+                inflater.end();
+            }
+        }
+
+        /**
+         * Copy the iteration data of this state onto the heap, if it has any, and stop using the session file it was
+         * read from, so the file can be replaced
+         */
+        synchronized void detach() {
+            getFrame();
+            data = null;
+            frameOffset = -1;
+        }
+
+        /**
+         * @return the view of this state at a size in pixels
+         */
+        View getView(int width, int height) {
+            View view = isJulia
+                    ? new View(width, height, reCenter, imCenter, zoom, maxIterations, juliaReSeed, juliaImSeed)
+                    : new View(width, height, reCenter, imCenter, zoom, maxIterations);
+            return view.setFormula(formula);
+        }
+
+        void write(DataOutputStream out, Map<Frame, Long> frameOffsets) throws IOException {
+            out.writeDouble(reCenter);
+            out.writeDouble(imCenter);
+            out.writeDouble(zoom);
+            out.writeDouble(readableZoom);
+            out.writeInt(maxIterations);
+            out.writeFloat(colorOffset);
+            writeString(out, brush.getClass().getName());
+            writeString(out, formula.getClass().getName());
+            out.writeInt(formula instanceof MultibrotFormula ? ((MultibrotFormula) formula).getPower() : 0);
+            out.writeBoolean(isOrbitDensity);
+            out.writeBoolean(isAntiBuddhabrot);
+            out.writeBoolean(isJulia);
+            out.writeDouble(juliaReSeed);
+            out.writeDouble(juliaImSeed);
+
+            Long offset = frame == null ? null : frameOffsets.get(frame);
+            out.writeLong(offset == null ? -1 : offset);
+            out.writeInt(offset == null ? 0 : frame.width);
+            out.writeInt(offset == null ? 0 : frame.height);
+        }
+
+        static State read(ByteBuffer in, ByteBuffer data) throws IOException {
+            State state = new State();
+            state.reCenter = in.getDouble();
+            state.imCenter = in.getDouble();
+            state.zoom = in.getDouble();
+            state.readableZoom = in.getDouble();
+            state.maxIterations = in.getInt();
+            state.colorOffset = in.getFloat();
+            String brushClass = readString(in);
+            String formulaClass = readString(in);
+            int formulaParameter = in.getInt();
+            state.isOrbitDensity = in.get() != 0;
+            state.isAntiBuddhabrot = in.get() != 0;
+            state.isJulia = in.get() != 0;
+            state.juliaReSeed = in.getDouble();
+            state.juliaImSeed = in.getDouble();
+
+            state.data = data;
+            state.frameOffset = in.getLong();
+            state.frameWidth = in.getInt();
+            state.frameHeight = in.getInt();
+            if (state.frameOffset >= 0 && (state.frameOffset + 4 > data.capacity() || state.frameOffset + 4
+                    + data.getInt((int) state.frameOffset) + 4L * state.frameWidth * state.frameHeight > data.capacity())) {
+                throw new IOException("Iteration data runs past the end of the session file");
+            }
+
+            IntFunction<Brush> brush = BRUSHES.get(brushClass);
+            IntFunction<Formula> formula = FORMULAS.get(formulaClass);
+            if (brush == null || formula == null) {
+                throw new IOException("Cannot restore " + brushClass + " and " + formulaClass);
+            }
+
+            state.brush = brush.apply(state.maxIterations);
+            state.formula = formula.apply(formulaParameter);
+            return state;
+        }
+
+        private static void writeString(DataOutputStream out, String string) throws IOException {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        private static String readString(ByteBuffer in) {
+            byte[] bytes = new byte[in.getInt()];
+            in.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
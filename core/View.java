@@ -0,0 +1,193 @@
+package mandelbrot.core;
+
+import mandelbrot.formulas.MandelbrotFormula;
+
+import java.util.Objects;
+
+/**
+ * The parameters that decide which points a frame iterates and how: its size, position, zoom, iteration budget,
+ * formula, whether distances to the set are estimated and, for Julia sets, the seed. Pixel coordinates map to the
+ * complex plane exactly as they do in Fractal.
+ */
+public class View {
+
+    int width, height;
+    double reCenter, imCenter;
+    double zoom;
+    int maxIterations;
+    Formula formula;
+    boolean isDistanceEstimated;
+
+    boolean isJulia;
+    double juliaReSeed, juliaImSeed;
+
+
+    /**
+     * Constructor for a Mandelbrot view
+     *
+     * @param width         the width in pixels
+     * @param height        the height in pixels
+     * @param reCenter      real component of the center
+     * @param imCenter      imaginary component of the center, negated as in Fractal
+     * @param zoom          pixels per unit
+     * @param maxIterations the iteration budget
+     */
+    public View(int width, int height, double reCenter, double imCenter, double zoom, int maxIterations) {
+        this.width = width;
+        this.height = height;
+        this.reCenter = reCenter;
+        this.imCenter = imCenter;
+        this.zoom = zoom;
+        this.maxIterations = maxIterations;
+
+        formula = new MandelbrotFormula();
+        isJulia = false;
+    }
+
+    /**
+     * Constructor for a Julia view
+     */
+    public View(int width, int height, double reCenter, double imCenter, double zoom, int maxIterations,
+                double juliaReSeed, double juliaImSeed) {
+        this(width, height, reCenter, imCenter, zoom, maxIterations);
+
+        this.isJulia = true;
+        this.juliaReSeed = juliaReSeed;
+        this.juliaImSeed = juliaImSeed;
+    }
+
+    public int getMaxIterations() {
+        return maxIterations;
+    }
+
+    public Formula getFormula() {
+        return formula;
+    }
+
+    /**
+     * Set the formula points are iterated under
+     *
+     * @param formula
+     * @return this view
+     */
+    public View setFormula(Formula formula) {
+        this.formula = formula;
+        return this;
+    }
+
+    public boolean isDistanceEstimated() {
+        return isDistanceEstimated;
+    }
+
+    /**
+     * Set whether points also get an estimate of their distance to the set. It costs a few more operations per
+     * iteration, so views only estimate it for brushes that use it.
+     *
+     * @param distanceEstimated
+     * @return this view
+     */
+    public View setDistanceEstimated(boolean distanceEstimated) {
+        this.isDistanceEstimated = distanceEstimated;
+        return this;
+    }
+
+    /**
+     * Copy the view, moved by a number of pixels. Positive amounts move right and down.
+     *
+     * @param xPixels
+     * @param yPixels
+     * @return the moved copy
+     */
+    public View moved(double xPixels, double yPixels) {
+        View view = new View(width, height, reCenter + xPixels / zoom, imCenter + yPixels / zoom, zoom, maxIterations);
+        view.formula = formula;
+        view.isDistanceEstimated = isDistanceEstimated;
+        view.isJulia = isJulia;
+        view.juliaReSeed = juliaReSeed;
+        view.juliaImSeed = juliaImSeed;
+        return view;
+    }
+
+    /**
+     * Copy the view, zoomed in or out about its center
+     *
+     * @param factor how many times to magnify, below 1 to zoom out
+     * @return the zoomed copy
+     */
+    public View zoomed(double factor) {
+        View view = moved(0, 0);
+        view.zoom = zoom * factor;
+        return view;
+    }
+
+    /**
+     * Copy the view at a lower resolution, covering the same region of the plane
+     *
+     * @param factor how many times fewer pixels to use along each axis
+     * @return the smaller copy
+     */
+    public View scaledDown(int factor) {
+        View view = moved(0, 0);
+        view.width = (width + factor - 1) / factor;
+        view.height = (height + factor - 1) / factor;
+        view.zoom = zoom / factor;
+        return view;
+    }
+
+    /**
+     * Converts an x coordinate on the image into the real component of that point
+     *
+     * @param xPixel
+     * @return
+     */
+    public double getRealComponent(double xPixel) {
+        return (reCenter - width / zoom / 2.0) + (xPixel / zoom);
+    }
+
+    /**
+     * Converts a y coordinate on the image into the imaginary component of that point
+     *
+     * @param yPixel
+     * @return
+     */
+    public double getImaginaryComponent(double yPixel) {
+        return (height / zoom / 2.0 - imCenter) - (yPixel / zoom);
+    }
+
+    /**
+     * Check if two views iterate the same fractal on the same pixel grid, so that they differ by at most a translation
+     *
+     * @param other
+     * @return true if pixels of one can be reused by the other
+     */
+    public boolean isAlignedWith(View other) {
+        return isSameFractalAs(other) && zoom == other.zoom;
+    }
+
+    /**
+     * Check if two views iterate the same fractal the same way at the same size, wherever they are and however far
+     * they are zoomed in, so that a pixel of one and a pixel of the other at the same point come out the same
+     *
+     * @param other
+     * @return true if pixels of one can be resampled into the other
+     */
+    public boolean isSameFractalAs(View other) {
+        return other != null && width == other.width && height == other.height
+                && maxIterations == other.maxIterations && formula.equals(other.formula)
+                && isDistanceEstimated == other.isDistanceEstimated && isJulia == other.isJulia
+                && juliaReSeed == other.juliaReSeed && juliaImSeed == other.juliaImSeed;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof View)) return false;
+
+        View view = (View) other;
+        return isAlignedWith(view) && reCenter == view.reCenter && imCenter == view.imCenter;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(width, height, reCenter, imCenter, zoom, maxIterations, formula, isDistanceEstimated, isJulia, juliaReSeed, juliaImSeed);
+    }
+}
@@ -0,0 +1,426 @@
+package mandelbrot.core;
+
+import mandelbrot.brushes.SmoothBrush;
+import mandelbrot.formulas.MandelbrotFormula;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.*;
+
+/**
+ * Renders a zoom toward a target point as a numbered PNG sequence.
+ *
+ * Instead of iterating every frame from scratch, the fractal is sampled once on an exponential map around the target:
+ * a strip whose columns are angles and whose rows are logarithmically spaced radii. Zooming in by a constant factor
+ * only shifts which rows of the strip are visible, so every frame can be rebuilt by resampling the strip, and each
+ * point of the animation is iterated exactly once. Rows are rendered as the frames need them and dropped once every
+ * remaining frame is zoomed in past them, so only one frame's worth of rings is ever held in memory.
+ *
+ * The strip normally holds colors. Brushes that draw with the distance to the set need it in pixels, and a ring is
+ * drawn at a different pixel size in every frame that shows it, while brushes that depend on the whole frame can
+ * only color a frame once they have seen all of it. For them the strip holds the iteration counts and escape
+ * magnitudes instead, and distances if the brush draws with them, and is colored frame by frame: brushes that
+ * depend on the frame are prepared from the nearest samples of every pixel before the frame is colored.
+ *
+ * Zoom levels are in pixels per unit, as in Fractal (the default view is 400).
+ */
+public class ZoomAnimation {
+
+    double reTarget, imTarget;
+    double startZoom, endZoom;
+    int frames;
+    int width, height;
+    int maxIterations;
+    float colorOffset;
+    Brush brush;
+    Formula formula;
+
+    boolean isJulia;
+    double juliaReSeed, juliaImSeed;
+
+    // Exponential map geometry
+    int angles;
+    int rows;
+    int windowRows;
+    double logOuter;
+    double logStep;
+    double halfDiagonal;
+
+    // Colors, or for brushes that draw with distances, iteration counts with their escape magnitudes and distances
+    int[] strip;
+    int[] stripIterations;
+    float[] stripMagnitudes;
+    float[] stripDistances;
+    int rowsRendered;
+
+    long stripSamples;
+    long renderTime;
+
+
+    /**
+     * Constructor
+     *
+     * @param reTarget      real component of the point to zoom toward
+     * @param imTarget      imaginary component of the point to zoom toward
+     * @param startZoom     zoom of the first frame
+     * @param endZoom       zoom of the last frame
+     * @param frames        number of frames to render
+     * @param width         width in pixels of each frame
+     * @param height        height in pixels of each frame
+     * @param maxIterations the iteration budget
+     * @param brush         the brush to paint with
+     * @param colorOffset   the color offset used by the brush
+     */
+    public ZoomAnimation(double reTarget, double imTarget, double startZoom, double endZoom, int frames,
+                         int width, int height, int maxIterations, Brush brush, float colorOffset) {
+        if (frames < 2) throw new IllegalArgumentException("An animation needs at least two frames");
+        if (startZoom <= 0 || endZoom <= 0) throw new IllegalArgumentException("Zoom must be positive");
+
+        this.reTarget = reTarget;
+        this.imTarget = imTarget;
+        this.startZoom = startZoom;
+        this.endZoom = endZoom;
+        this.frames = frames;
+        this.width = width;
+        this.height = height;
+        this.maxIterations = maxIterations;
+        this.brush = brush;
+        this.colorOffset = colorOffset;
+
+        formula = new MandelbrotFormula();
+        isJulia = false;
+    }
+
+    /**
+     * Set the formula points are iterated under
+     *
+     * @param formula
+     */
+    public void setFormula(Formula formula) {
+        this.formula = formula;
+    }
+
+    /**
+     * Zoom into a Julia set instead of the Mandelbrot set
+     *
+     * @param reSeed
+     * @param imSeed
+     */
+    public void setJuliaSeed(double reSeed, double imSeed) {
+        isJulia = true;
+        juliaReSeed = reSeed;
+        juliaImSeed = imSeed;
+    }
+
+    /**
+     * Render every frame into a directory, named frame00000.png, frame00001.png, ...
+     *
+     * @param directory the directory to write to
+     * @return a report comparing the cost against rendering every frame independently
+     */
+    public String render(File directory) throws IOException, InterruptedException, ExecutionException {
+        long startTime = System.currentTimeMillis();
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+
+        // One column per pixel around the outer edge of a frame, and square cells so the map is conformal
+        halfDiagonal = Math.hypot(width, height) / 2.0;
+        angles = Math.max(8, (int) Math.ceil(2 * Math.PI * halfDiagonal));
+        logStep = 2 * Math.PI / angles;
+
+        // Cover from the corners of the widest frame down to half a pixel from the center of the deepest one
+        logOuter = Math.log(halfDiagonal / Math.min(startZoom, endZoom)) + logStep;
+        double logInner = Math.log(0.5 / Math.max(startZoom, endZoom));
+        rows = (int) Math.ceil((logOuter - logInner) / logStep) + 2;
+        windowRows = Math.min(rows, (int) Math.ceil(Math.log(halfDiagonal / 0.5) / logStep) + 4);
+
+        if (brush.isDistanceDependent() || brush.isFrameDependent()) {
+            stripIterations = new int[windowRows * angles];
+            stripMagnitudes = new float[windowRows * angles];
+            if (brush.isDistanceDependent()) stripDistances = new float[windowRows * angles];
+        } else {
+            strip = new int[windowRows * angles];
+        }
+        rowsRendered = 0;
+        stripSamples = 0;
+
+        // The renderer's pool does the work, and brushes that depend on the frame use it to prepare
+        int processors = Runtime.getRuntime().availableProcessors();
+        Renderer renderer = new Renderer(processors);
+        ExecutorService executor = renderer.executor;
+
+        try {
+            // The strip is rendered from the outside in, so always work from the widest frame to the deepest one
+            boolean zoomingIn = endZoom >= startZoom;
+            BufferedImage frameImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            int[] pixels = new int[width * height];
+
+            for (int i = 0; i < frames; i++) {
+                int frame = zoomingIn ? i : frames - 1 - i;
+                double zoom = startZoom * Math.pow(endZoom / startZoom, frame / (double) (frames - 1));
+
+                renderRowsUpTo(innermostRow(zoom), executor, processors);
+                resampleFrame(zoom, pixels, renderer, processors);
+
+                frameImage.setRGB(0, 0, width, height, pixels, 0, width);
+                ImageIO.write(frameImage, "png", new File(directory, String.format("frame%05d.png", frame)));
+            }
+        } finally {
+            renderer.shutdown();
+        }
+
+        strip = null;
+        stripIterations = null;
+        stripMagnitudes = null;
+        stripDistances = null;
+        renderTime = System.currentTimeMillis() - startTime;
+
+        return getReport();
+    }
+
+    /**
+     * @return a summary of the last render, comparing the samples iterated against naive per-frame rendering
+     */
+    public String getReport() {
+        long naiveSamples = (long) frames * width * height;
+
+        return String.format("Rendered %d frames in %d ms from %,d exponential map samples " +
+                        "(naive rendering: %,d samples, %.1fx more)",
+                frames, renderTime, stripSamples, naiveSamples, naiveSamples / (double) Math.max(1, stripSamples));
+    }
+
+    /**
+     * Find the row of the strip holding the given log radius
+     */
+    private double rowPosition(double logRadius) {
+        return (logOuter - logRadius) / logStep;
+    }
+
+    private int outermostRow(double zoom) {
+        return Math.max(0, (int) Math.floor(rowPosition(Math.log(halfDiagonal / zoom))));
+    }
+
+    private int innermostRow(double zoom) {
+        return Math.min(rows - 1, (int) Math.ceil(rowPosition(Math.log(0.5 / zoom))) + 1);
+    }
+
+    /**
+     * Render every row of the strip that has not been rendered yet, up to and including lastRow
+     */
+    private void renderRowsUpTo(int lastRow, ExecutorService executor, int processors) throws InterruptedException, ExecutionException {
+        if (lastRow < rowsRendered) return;
+
+        int firstRow = rowsRendered;
+        int count = lastRow - firstRow + 1;
+        int rowsPerTask = Math.max(1, (count + processors - 1) / processors);
+
+        Collection<Callable<Void>> tasks = new ArrayList<>();
+        for (int start = firstRow; start <= lastRow; start += rowsPerTask) {
+            int rowStart = start;
+            int rowEnd = Math.min(lastRow + 1, start + rowsPerTask);
+            tasks.add(() -> {
+                renderRows(rowStart, rowEnd);
+                return null;
+            });
+        }
+
+        for (Future<Void> future : executor.invokeAll(tasks)) {
+            future.get();
+        }
+
+        rowsRendered = lastRow + 1;
+        stripSamples += (long) count * angles;
+    }
+
+    /**
+     * Iterate and color the rings of the strip between two rows
+     */
+    private void renderRows(int startRow, int endRow) {
+        EscapeTime escapeTime = new EscapeTime(formula);
+
+        for (int row = startRow; row < endRow; row++) {
+            double radius = Math.exp(logOuter - row * logStep);
+            int offset = (row % windowRows) * angles;
+
+            for (int column = 0; column < angles; column++) {
+                double theta = 2 * Math.PI * column / angles;
+                double re = reTarget + radius * Math.cos(theta);
+                double im = imTarget + radius * Math.sin(theta);
+
+                if (stripDistances != null) {
+                    int iteration = isJulia
+                            ? formula.iterateWithDistance(re, im, juliaReSeed, juliaImSeed, maxIterations, false, escapeTime)
+                            : formula.iterateWithDistance(0, 0, re, im, maxIterations, true, escapeTime);
+
+                    // Distances stay in units of the plane until a frame says how big its pixels are
+                    stripIterations[offset + column] = iteration;
+                    stripMagnitudes[offset + column] = (float) escapeTime.escapeMagnitude;
+                    stripDistances[offset + column] = (float) escapeTime.distance;
+                    continue;
+                }
+
+                int iteration;
+                if (isJulia) {
+                    iteration = escapeTime.iterate(re, im, juliaReSeed, juliaImSeed, maxIterations);
+                } else {
+                    iteration = escapeTime.iterate(0, 0, re, im, maxIterations);
+                }
+
+                if (strip == null) {
+                    stripIterations[offset + column] = iteration;
+                    stripMagnitudes[offset + column] = (float) escapeTime.escapeMagnitude;
+                    continue;
+                }
+
+                strip[offset + column] = brush.getColor(iteration, escapeTime.escapeMagnitude, colorOffset);
+            }
+        }
+    }
+
+    /**
+     * Rebuild one frame from the strip, splitting the frame into horizontal bands across the pool. Brushes that
+     * depend on the frame first get to see the nearest samples of every pixel, as a frame of their own.
+     */
+    private void resampleFrame(double zoom, int[] pixels, Renderer renderer, int processors) throws InterruptedException, ExecutionException {
+        int outermost = outermostRow(zoom);
+        int innermost = innermostRow(zoom);
+        if (innermost - outermost >= windowRows) {
+            throw new IllegalStateException("Frame does not fit in the exponential map window");
+        }
+
+        Brush colorBrush = brush;
+        if (brush.isFrameDependent()) {
+            Frame sampled = new Frame(width, height);
+            sampled.view = (isJulia
+                    ? new View(width, height, reTarget, -imTarget, zoom, maxIterations, juliaReSeed, juliaImSeed)
+                    : new View(width, height, reTarget, -imTarget, zoom, maxIterations)).setFormula(formula);
+            if (stripDistances != null) sampled.distances = new double[width * height];
+
+            resampleBands(zoom, outermost, innermost, pixels, sampled, brush, renderer.executor, processors);
+            colorBrush = brush.prepare(sampled, renderer);
+        }
+
+        resampleBands(zoom, outermost, innermost, pixels, null, colorBrush, renderer.executor, processors);
+    }
+
+    private void resampleBands(double zoom, int outermost, int innermost, int[] pixels, Frame sampled, Brush colorBrush,
+                               ExecutorService executor, int processors) throws InterruptedException, ExecutionException {
+        Collection<Callable<Void>> tasks = new ArrayList<>();
+        int bandHeight = Math.max(1, (height + processors - 1) / processors);
+
+        for (int start = 0; start < height; start += bandHeight) {
+            int yStart = start;
+            int yEnd = Math.min(height, start + bandHeight);
+            tasks.add(() -> {
+                resampleBand(zoom, outermost, innermost, pixels, sampled, colorBrush, yStart, yEnd);
+                return null;
+            });
+        }
+
+        for (Future<Void> future : executor.invokeAll(tasks)) {
+            future.get();
+        }
+    }
+
+    /**
+     * Resample the rows of a frame between two rows. Each pixel blends the colors of the four samples around it,
+     * or with a frame to sample into, takes the iteration data of the nearest one.
+     */
+    private void resampleBand(double zoom, int outermost, int innermost, int[] pixels, Frame sampled, Brush colorBrush,
+                              int yStart, int yEnd) {
+        for (int yPixel = yStart; yPixel < yEnd; yPixel++) {
+            double dy = height / 2.0 - yPixel;
+
+            for (int xPixel = 0; xPixel < width; xPixel++) {
+                double dx = xPixel - width / 2.0;
+
+                // Points closer to the target than half a pixel all land in the innermost ring
+                double pixelRadius = Math.max(0.5, Math.hypot(dx, dy));
+                double rowPosition = rowPosition(Math.log(pixelRadius / zoom));
+                rowPosition = Math.min(innermost, Math.max(outermost, rowPosition));
+
+                double columnPosition = Math.atan2(dy, dx) / (2 * Math.PI) * angles;
+                if (columnPosition < 0) columnPosition += angles;
+
+                int row0 = (int) rowPosition;
+                int row1 = Math.min(innermost, row0 + 1);
+                int column0 = (int) columnPosition % angles;
+                int column1 = (column0 + 1) % angles;
+
+                double rowWeight = rowPosition - row0;
+                double columnWeight = columnPosition - (int) columnPosition;
+
+                int offset0 = (row0 % windowRows) * angles;
+                int offset1 = (row1 % windowRows) * angles;
+                int index = yPixel * width + xPixel;
+
+                if (sampled != null) {
+                    int nearest = (rowWeight < 0.5 ? offset0 : offset1) + (columnWeight < 0.5 ? column0 : column1);
+                    sampled.iterations[index] = stripIterations[nearest];
+                    sampled.escapeMagnitudes[index] = stripMagnitudes[nearest];
+                    if (sampled.distances != null) sampled.distances[index] = stripDistances[nearest] * zoom;
+                    continue;
+                }
+
+                pixels[index] = blend(
+                        blend(stripColor(offset0 + column0, zoom, colorBrush), stripColor(offset0 + column1, zoom, colorBrush), columnWeight),
+                        blend(stripColor(offset1 + column0, zoom, colorBrush), stripColor(offset1 + column1, zoom, colorBrush), columnWeight),
+                        rowWeight);
+            }
+        }
+    }
+
+    /**
+     * The color of a sample of the strip in a frame at a zoom
+     */
+    private int stripColor(int index, double zoom, Brush colorBrush) {
+        if (strip != null) return strip[index];
+
+        return stripDistances != null
+                ? colorBrush.getColor(stripIterations[index], stripMagnitudes[index], stripDistances[index] * zoom, colorOffset)
+                : colorBrush.getColor(stripIterations[index], stripMagnitudes[index], colorOffset);
+    }
+
+    /**
+     * Linearly interpolate between two RGB colors
+     */
+    private static int blend(int a, int b, double t) {
+        if (a == b) return a;
+
+        int red = (int) Math.round(((a >> 16) & 0xFF) * (1 - t) + ((b >> 16) & 0xFF) * t);
+        int green = (int) Math.round(((a >> 8) & 0xFF) * (1 - t) + ((b >> 8) & 0xFF) * t);
+        int blue = (int) Math.round((a & 0xFF) * (1 - t) + (b & 0xFF) * t);
+
+        return (red << 16) | (green << 8) | blue;
+    }
+
+    /**
+     * Render a zoom animation from the command line.
+     *
+     * Usage: java mandelbrot.core.ZoomAnimation re im startZoom endZoom frames directory [width height maxIterations]
+     *
+     * @param args
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length != 6 && args.length != 9) {
+            System.err.println("Usage: java mandelbrot.core.ZoomAnimation re im startZoom endZoom frames directory [width height maxIterations]");
+            System.exit(1);
+        }
+
+        int width = args.length == 9 ? Integer.parseInt(args[6]) : 1280;
+        int height = args.length == 9 ? Integer.parseInt(args[7]) : 720;
+        int maxIterations = args.length == 9 ? Integer.parseInt(args[8]) : 1000;
+
+        ZoomAnimation animation = new ZoomAnimation(Double.parseDouble(args[0]), Double.parseDouble(args[1]),
+                Double.parseDouble(args[2]), Double.parseDouble(args[3]), Integer.parseInt(args[4]),
+                width, height, maxIterations, new SmoothBrush(maxIterations), 0);
+
+        System.out.println(animation.render(new File(args[5])));
+    }
+}
@@ -0,0 +1,38 @@
+package mandelbrot.core;
+
+import mandelbrot.brushes.BoundaryBrush;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FlightPathTest {
+
+    @Test
+    void boundaryPathRendersWithDistances(@TempDir Path directory) throws Exception {
+        List<FlightPath.Keyframe> keyframes = Arrays.asList(
+                new FlightPath.Keyframe(0, -0.75, 0, 40),
+                new FlightPath.Keyframe(4, -0.7436, 0.1318, 80));
+        BoundaryBrush brush = new BoundaryBrush(200);
+        FlightPath path = new FlightPath(keyframes, 64, 48, 200, brush, 0);
+
+        Renderer renderer = new Renderer(2);
+        try {
+            for (int i = 0; i < path.getFrameCount(); i++) {
+                View view = path.getView(i);
+                assertTrue(view.isDistanceEstimated(), "frame " + i + " is not distance estimated");
+                assertNotNull(renderer.render(view, brush, 0).getDistances(), "frame " + i + " has no distances");
+            }
+        } finally {
+            renderer.shutdown();
+        }
+
+        path.render(directory.toFile(), 2);
+        assertTrue(new File(directory.toFile(), "frame00004.png").isFile());
+    }
+}
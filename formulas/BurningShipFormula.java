@@ -0,0 +1,51 @@
+package mandelbrot.formulas;
+
+import mandelbrot.core.EscapeTime;
+import mandelbrot.core.Formula;
+
+/**
+ * The Burning Ship, z -> (|Re z| + i|Im z|)^2 + c.
+ */
+public class BurningShipFormula extends Formula {
+
+    @Override
+    public int iterate(double re, double im, double re0, double im0, int maxIterations, EscapeTime result) {
+        double reSqr = re * re;
+        double imSqr = im * im;
+
+        int iteration = 0;
+
+        while (reSqr + imSqr < 4 && iteration < maxIterations) {
+            im = 2 * Math.abs(re * im) + im0;
+            re = reSqr - imSqr + re0;
+            reSqr = re * re;
+            imSqr = im * im;
+
+            iteration++;
+        }
+
+        result.set(iteration, Math.sqrt(reSqr + imSqr));
+        return iteration;
+    }
+
+    @Override
+    public int orbit(double re, double im, double re0, double im0, int maxIterations, double[] orbit) {
+        double reSqr = re * re;
+        double imSqr = im * im;
+
+        int length = 0;
+
+        while (reSqr + imSqr < 4 && length < maxIterations) {
+            im = 2 * Math.abs(re * im) + im0;
+            re = reSqr - imSqr + re0;
+            reSqr = re * re;
+            imSqr = im * im;
+
+            orbit[2 * length] = re;
+            orbit[2 * length + 1] = im;
+            length++;
+        }
+
+        return length;
+    }
+}
@@ -0,0 +1,99 @@
+package mandelbrot.formulas;
+
+import mandelbrot.core.EscapeTime;
+import mandelbrot.core.Formula;
+
+/**
+ * The classic z -> z^2 + c.
+ */
+public class MandelbrotFormula extends Formula {
+
+    @Override
+    public int iterate(double re, double im, double re0, double im0, int maxIterations, EscapeTime result) {
+        double reSqr = re * re;
+        double imSqr = im * im;
+
+        int iteration = 0;
+
+        while (reSqr + imSqr < 4 && iteration < maxIterations) {
+            im = 2 * (re * im) + im0;
+            re = reSqr - imSqr + re0;
+            reSqr = re * re;
+            imSqr = im * im;
+
+            iteration++;
+        }
+
+        result.set(iteration, Math.sqrt(reSqr + imSqr));
+        return iteration;
+    }
+
+    @Override
+    public int orbit(double re, double im, double re0, double im0, int maxIterations, double[] orbit) {
+        double reSqr = re * re;
+        double imSqr = im * im;
+
+        int length = 0;
+
+        while (reSqr + imSqr < 4 && length < maxIterations) {
+            im = 2 * (re * im) + im0;
+            re = reSqr - imSqr + re0;
+            reSqr = re * re;
+            imSqr = im * im;
+
+            orbit[2 * length] = re;
+            orbit[2 * length + 1] = im;
+            length++;
+        }
+
+        return length;
+    }
+
+    @Override
+    public int iterateWithDistance(double re, double im, double re0, double im0, int maxIterations, boolean respectToC,
+                                   EscapeTime result) {
+        double reSqr = re * re;
+        double imSqr = im * im;
+
+        // dz -> 2 z dz + 1 by c, starting from 0, or dz -> 2 z dz by the starting z, starting from 1
+        double reDerivative = respectToC ? 0 : 1;
+        double imDerivative = 0;
+        double constant = respectToC ? 1 : 0;
+
+        int iteration = 0;
+
+        while (reSqr + imSqr < 4 && iteration < maxIterations) {
+            double reNext = 2 * (re * reDerivative - im * imDerivative) + constant;
+            imDerivative = 2 * (re * imDerivative + im * reDerivative);
+            reDerivative = reNext;
+
+            im = 2 * (re * im) + im0;
+            re = reSqr - imSqr + re0;
+            reSqr = re * re;
+            imSqr = im * im;
+
+            iteration++;
+        }
+
+        double escapeMagnitude = Math.sqrt(reSqr + imSqr);
+        if (iteration == maxIterations) {
+            result.set(iteration, escapeMagnitude, 0);
+            return iteration;
+        }
+
+        // Carry on past the escape radius, without counting, so the estimate settles
+        for (int extra = 0; extra < DISTANCE_ITERATIONS && reSqr + imSqr < DISTANCE_RADIUS * DISTANCE_RADIUS; extra++) {
+            double reNext = 2 * (re * reDerivative - im * imDerivative) + constant;
+            imDerivative = 2 * (re * imDerivative + im * reDerivative);
+            reDerivative = reNext;
+
+            im = 2 * (re * im) + im0;
+            re = reSqr - imSqr + re0;
+            reSqr = re * re;
+            imSqr = im * im;
+        }
+
+        result.set(iteration, escapeMagnitude, distance(Math.sqrt(reSqr + imSqr), reDerivative, imDerivative));
+        return iteration;
+    }
+}
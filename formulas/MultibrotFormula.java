@@ -0,0 +1,141 @@
+package mandelbrot.formulas;
+
+import mandelbrot.core.EscapeTime;
+import mandelbrot.core.Formula;
+
+/**
+ * Multibrot sets, z -> z^n + c for a whole power n of at least 2.
+ */
+public class MultibrotFormula extends Formula {
+
+    final int power;
+
+    public MultibrotFormula(int power) {
+        if (power < 2) throw new IllegalArgumentException("Multibrot power must be at least 2");
+        this.power = power;
+    }
+
+    public int getPower() {
+        return power;
+    }
+
+    @Override
+    public int iterate(double re, double im, double re0, double im0, int maxIterations, EscapeTime result) {
+        int power = this.power;
+        double magnitudeSqr = re * re + im * im;
+
+        int iteration = 0;
+
+        while (magnitudeSqr < 4 && iteration < maxIterations) {
+            // z^n by repeated multiplication, which stays exact for small powers unlike going through polar form
+            double rePower = re;
+            double imPower = im;
+            for (int i = 1; i < power; i++) {
+                double reNext = rePower * re - imPower * im;
+                imPower = rePower * im + imPower * re;
+                rePower = reNext;
+            }
+
+            re = rePower + re0;
+            im = imPower + im0;
+            magnitudeSqr = re * re + im * im;
+
+            iteration++;
+        }
+
+        result.set(iteration, Math.sqrt(magnitudeSqr));
+        return iteration;
+    }
+
+    @Override
+    public int orbit(double re, double im, double re0, double im0, int maxIterations, double[] orbit) {
+        int power = this.power;
+        double magnitudeSqr = re * re + im * im;
+
+        int length = 0;
+
+        while (magnitudeSqr < 4 && length < maxIterations) {
+            double rePower = re;
+            double imPower = im;
+            for (int i = 1; i < power; i++) {
+                double reNext = rePower * re - imPower * im;
+                imPower = rePower * im + imPower * re;
+                rePower = reNext;
+            }
+
+            re = rePower + re0;
+            im = imPower + im0;
+            magnitudeSqr = re * re + im * im;
+
+            orbit[2 * length] = re;
+            orbit[2 * length + 1] = im;
+            length++;
+        }
+
+        return length;
+    }
+
+    @Override
+    public int iterateWithDistance(double re, double im, double re0, double im0, int maxIterations, boolean respectToC,
+                                   EscapeTime result) {
+        int power = this.power;
+        double magnitudeSqr = re * re + im * im;
+
+        // dz -> n z^(n-1) dz + 1 by c, starting from 0, or dz -> n z^(n-1) dz by the starting z, starting from 1
+        double reDerivative = respectToC ? 0 : 1;
+        double imDerivative = 0;
+        double constant = respectToC ? 1 : 0;
+
+        int iteration = 0;
+        double escapeMagnitude = 0;
+
+        // The loop runs on past the escape radius, without counting, so the estimate settles
+        int extra = 0;
+        while (iteration < maxIterations && extra < DISTANCE_ITERATIONS) {
+            if (magnitudeSqr >= 4) {
+                if (extra == 0) escapeMagnitude = Math.sqrt(magnitudeSqr);
+                if (magnitudeSqr >= DISTANCE_RADIUS * DISTANCE_RADIUS) break;
+                extra++;
+            }
+
+            // z^(n-1), then z^n from it
+            double reLower = re;
+            double imLower = im;
+            for (int i = 2; i < power; i++) {
+                double reNext = reLower * re - imLower * im;
+                imLower = reLower * im + imLower * re;
+                reLower = reNext;
+            }
+
+            double reNext = power * (reLower * reDerivative - imLower * imDerivative) + constant;
+            imDerivative = power * (reLower * imDerivative + imLower * reDerivative);
+            reDerivative = reNext;
+
+            double rePower = reLower * re - imLower * im;
+            double imPower = reLower * im + imLower * re;
+            re = rePower + re0;
+            im = imPower + im0;
+            magnitudeSqr = re * re + im * im;
+
+            if (extra == 0) iteration++;
+        }
+
+        if (iteration == maxIterations) {
+            result.set(iteration, Math.sqrt(magnitudeSqr), 0);
+            return iteration;
+        }
+
+        result.set(iteration, escapeMagnitude, distance(Math.sqrt(magnitudeSqr), reDerivative, imDerivative));
+        return iteration;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return super.equals(other) && ((MultibrotFormula) other).power == power;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * super.hashCode() + power;
+    }
+}